@@ -0,0 +1,206 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_AAUDIO_BACKEND_HXX_
+#define SRC_AAUDIO_BACKEND_HXX_
+
+#include <cstdint>
+#include <dlfcn.h>
+
+#include "capture_backend.hxx"
+
+// Low latency input through AAudio. libaaudio.so is loaded at runtime, the
+// NDK declare its functions for API 26+ only while the app support API 23.
+// The handful of types and constants used are those of aaudio/AAudio.h.
+struct aaudio_backend : public capture_backend {
+
+	struct stream;
+	struct builder;
+
+	using result_t = std::int32_t;
+	using data_callback_t = std::int32_t (*)(stream *, void *, void *, std::int32_t);
+
+	enum : std::int32_t {
+		AAUDIO_OK = 0,
+		AAUDIO_DIRECTION_INPUT = 1,
+		AAUDIO_FORMAT_PCM_I16 = 1,
+		AAUDIO_SHARING_MODE_EXCLUSIVE = 0,
+		AAUDIO_PERFORMANCE_MODE_LOW_LATENCY = 12,
+		AAUDIO_CALLBACK_RESULT_CONTINUE = 0,
+		AAUDIO_STREAM_STATE_STOPPING = 9,
+		AAUDIO_STREAM_STATE_STOPPED = 10
+	};
+
+	// Same values as MediaRecorder.AudioSource, 0 keep the default preset.
+	std::int32_t input_preset;
+
+	void * library;
+	stream * handle;
+	capture_sink * sink;
+
+	result_t (*createStreamBuilder)(builder **);
+	void (*setDirection)(builder *, std::int32_t);
+	void (*setSampleRate)(builder *, std::int32_t);
+	void (*setChannelCount)(builder *, std::int32_t);
+	void (*setFormat)(builder *, std::int32_t);
+	void (*setSharingMode)(builder *, std::int32_t);
+	void (*setPerformanceMode)(builder *, std::int32_t);
+	void (*setInputPreset)(builder *, std::int32_t); // API 28, may be missing
+	void (*setDataCallback)(builder *, data_callback_t, void *);
+	result_t (*openStream)(builder *, stream **);
+	result_t (*deleteBuilder)(builder *);
+	result_t (*requestStart)(stream *);
+	result_t (*requestStop)(stream *);
+	result_t (*waitForStateChange)(stream *, std::int32_t, std::int32_t *, std::int64_t);
+	result_t (*closeStream)(stream *);
+	std::int32_t (*getSampleRate)(stream *);
+	std::int32_t (*getChannelCount)(stream *);
+	std::int32_t (*getFormat)(stream *);
+
+	aaudio_backend(std::int32_t input_preset = 0) :
+		input_preset(input_preset), library(nullptr), handle(nullptr), sink(nullptr) { }
+
+	~aaudio_backend() {
+		close();
+		if (library != nullptr)
+			dlclose(library);
+	}
+
+	template<typename F>
+	bool resolve(F & f, char const * symbol)
+	{
+		f = reinterpret_cast<F>(dlsym(library, symbol));
+		return f != nullptr;
+	}
+
+	bool load()
+	{
+		if (library != nullptr)
+			return true;
+		library = dlopen("libaaudio.so", RTLD_NOW);
+		if (library == nullptr)
+			return false;
+
+		resolve(setInputPreset, "AAudioStreamBuilder_setInputPreset");
+		if (resolve(createStreamBuilder, "AAudio_createStreamBuilder")
+				&& resolve(setDirection, "AAudioStreamBuilder_setDirection")
+				&& resolve(setSampleRate, "AAudioStreamBuilder_setSampleRate")
+				&& resolve(setChannelCount, "AAudioStreamBuilder_setChannelCount")
+				&& resolve(setFormat, "AAudioStreamBuilder_setFormat")
+				&& resolve(setSharingMode, "AAudioStreamBuilder_setSharingMode")
+				&& resolve(setPerformanceMode, "AAudioStreamBuilder_setPerformanceMode")
+				&& resolve(setDataCallback, "AAudioStreamBuilder_setDataCallback")
+				&& resolve(openStream, "AAudioStreamBuilder_openStream")
+				&& resolve(deleteBuilder, "AAudioStreamBuilder_delete")
+				&& resolve(requestStart, "AAudioStream_requestStart")
+				&& resolve(requestStop, "AAudioStream_requestStop")
+				&& resolve(waitForStateChange, "AAudioStream_waitForStateChange")
+				&& resolve(closeStream, "AAudioStream_close")
+				&& resolve(getSampleRate, "AAudioStream_getSampleRate")
+				&& resolve(getChannelCount, "AAudioStream_getChannelCount")
+				&& resolve(getFormat, "AAudioStream_getFormat"))
+			return true;
+
+		dlclose(library);
+		library = nullptr;
+		return false;
+	}
+
+	static std::int32_t on_data(stream * /*s*/, void * user, void * data, std::int32_t frames)
+	{
+		auto * self = reinterpret_cast<aaudio_backend *>(user);
+		self->sink->on_samples(reinterpret_cast<std::int16_t const *>(data), frames, now());
+		return AAUDIO_CALLBACK_RESULT_CONTINUE;
+	}
+
+	int open(int sample_rate, capture_sink * s) override
+	{
+		close();
+		if (!load())
+			return -1;
+
+		builder * b = nullptr;
+		if (createStreamBuilder(&b) != AAUDIO_OK)
+			return -1;
+
+		setDirection(b, AAUDIO_DIRECTION_INPUT);
+		if (sample_rate > 0)
+			setSampleRate(b, sample_rate);
+		setChannelCount(b, 1);
+		setFormat(b, AAUDIO_FORMAT_PCM_I16);
+		setSharingMode(b, AAUDIO_SHARING_MODE_EXCLUSIVE);
+		setPerformanceMode(b, AAUDIO_PERFORMANCE_MODE_LOW_LATENCY);
+		if (input_preset > 0 && setInputPreset != nullptr)
+			setInputPreset(b, input_preset);
+		setDataCallback(b, &on_data, this);
+
+		result_t err = openStream(b, &handle);
+		deleteBuilder(b);
+		if (err != AAUDIO_OK) {
+			handle = nullptr;
+			return -1;
+		}
+
+		if (getChannelCount(handle) != 1 || getFormat(handle) != AAUDIO_FORMAT_PCM_I16) {
+			close();
+			return -1;
+		}
+
+		sink = s;
+		return getSampleRate(handle);
+	}
+
+	int start() override
+	{
+		if (handle == nullptr || requestStart(handle) != AAUDIO_OK)
+			return -1;
+		return 0;
+	}
+
+	// requestStop is asynchronous, wait for the last callback to return.
+	void stop() override
+	{
+		if (handle == nullptr || requestStop(handle) != AAUDIO_OK)
+			return;
+		std::int32_t state = AAUDIO_STREAM_STATE_STOPPING;
+		while (state == AAUDIO_STREAM_STATE_STOPPING) {
+			if (waitForStateChange(handle, state, &state, 100000000ll) != AAUDIO_OK)
+				break;
+		}
+	}
+
+	void close() override
+	{
+		if (handle == nullptr)
+			return;
+		closeStream(handle);
+		handle = nullptr;
+		sink = nullptr;
+	}
+
+	char const * name() const override
+	{
+		return "aaudio";
+	}
+
+};
+
+#endif /* SRC_AAUDIO_BACKEND_HXX_ */
@@ -0,0 +1,104 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_ANALYSIS_EXCHANGE_HXX_
+#define SRC_ANALYSIS_EXCHANGE_HXX_
+
+#include <atomic>
+#include <memory>
+
+#include "tone_handler.hxx"
+#include "pitch_engine.hxx"
+
+// Everything rebuilt on a change of window.
+struct analysis {
+	tone_handler<float> handler;
+	pitch_engine<float> engine{handler};
+
+	int init(int sample_rate, int interpolation_factor, double sigma_hz)
+	{
+		int err = handler.init_sample_rate(sample_rate, interpolation_factor, sigma_hz);
+		if (err >= 0)
+			engine.init();
+		return err;
+	}
+};
+
+// Hand an analysis built on a control thread over to the thread that run
+// the frames, which never allocate nor free it. The frame thread own current
+// and swap in the pending one at a frame boundary, the replaced one is handed
+// back in retired and freed by the control thread.
+template<typename A>
+struct analysis_exchange {
+
+	std::unique_ptr<A> current;
+	std::atomic<A *> pending;
+	std::atomic<A *> retired;
+
+	analysis_exchange() : pending(nullptr), retired(nullptr) { }
+
+	~analysis_exchange() {
+		delete pending.exchange(nullptr);
+		delete retired.exchange(nullptr);
+	}
+
+	// Control thread, replace the pending analysis if it was not swapped in yet.
+	void publish(std::unique_ptr<A> next)
+	{
+		collect();
+		delete pending.exchange(next.release(), std::memory_order_acq_rel);
+	}
+
+	// Control thread, free the analysis released by the frame thread.
+	void collect()
+	{
+		delete retired.exchange(nullptr, std::memory_order_acquire);
+	}
+
+	// Frame thread, swap in the pending analysis once the previous retired
+	// one was collected. Return it, nullptr when nothing was swapped.
+	A * swap()
+	{
+		if (pending.load(std::memory_order_relaxed) == nullptr
+				|| retired.load(std::memory_order_acquire) != nullptr)
+			return nullptr;
+
+		A * next = pending.exchange(nullptr, std::memory_order_acq_rel);
+		if (next == nullptr)
+			return nullptr;
+
+		retired.store(current.release(), std::memory_order_release);
+		current.reset(next);
+		return next;
+	}
+
+	// While the frame thread is not running, replace current and drop any
+	// pending analysis.
+	void reset(std::unique_ptr<A> next)
+	{
+		delete pending.exchange(nullptr);
+		collect();
+		current = std::move(next);
+	}
+
+};
+
+#endif /* SRC_ANALYSIS_EXCHANGE_HXX_ */
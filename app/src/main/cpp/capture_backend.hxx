@@ -0,0 +1,153 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_CAPTURE_BACKEND_HXX_
+#define SRC_CAPTURE_BACKEND_HXX_
+
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <functional>
+#include <thread>
+#include <vector>
+
+// Receive the mono 16 bits samples of a capture_backend, on its audio thread.
+struct capture_sink {
+	virtual ~capture_sink() { }
+
+	// time is the steady_clock time in ns at which the last sample of data
+	// was captured, the same clock as System.nanoTime.
+	virtual void on_samples(std::int16_t const * data, std::size_t count, std::int64_t time) = 0;
+};
+
+// A source of mono 16 bits samples that call its sink from its own audio
+// thread, the device input through AAudio or OpenSL ES, or a fake source.
+struct capture_backend {
+	virtual ~capture_backend() { }
+
+	// Open the stream at sample_rate, 0 let the backend pick the device
+	// rate. Return the actual rate, negative on error.
+	virtual int open(int sample_rate, capture_sink * sink) = 0;
+	virtual int start() = 0;
+	virtual void stop() = 0;
+	virtual void close() = 0;
+	virtual char const * name() const = 0;
+
+	static std::int64_t now()
+	{
+		return std::chrono::duration_cast<std::chrono::nanoseconds>(
+				std::chrono::steady_clock::now().time_since_epoch()).count();
+	}
+};
+
+// Call the sink from a plain thread with blocks of block_size samples
+// produced by generate, paced at the sample rate or as fast as possible. It
+// run the capture path without any audio device, on a Linux host too.
+struct fake_backend : public capture_backend {
+
+	// Fill count samples starting at position since the start of the stream.
+	using generator = std::function<void(std::int16_t * data, std::size_t count, std::uint64_t position)>;
+
+	generator generate;
+	std::size_t block_size;
+	bool real_time;
+
+	int sample_rate;
+	capture_sink * sink;
+	std::atomic<bool> running;
+	std::thread thread;
+
+	fake_backend(generator generate, int sample_rate, std::size_t block_size = 192, bool real_time = true) :
+		generate(generate), block_size(block_size), real_time(real_time),
+		sample_rate(sample_rate), sink(nullptr), running(false) { }
+
+	~fake_backend() {
+		close();
+	}
+
+	// Harmonic tone with a 1/k spectrum, as SyntheticSampleSource.
+	static generator tone(int sample_rate, double frequency, int harmonics = 6, double amplitude = 0.5)
+	{
+		return [=](std::int16_t * data, std::size_t count, std::uint64_t position) {
+			double norm = 0.0;
+			for (int k = 1; k <= harmonics; ++k)
+				norm += 1.0/k;
+			double scale = amplitude*32767.0/norm;
+			for (std::size_t i = 0; i < count; ++i) {
+				double phase = 2.0*M_PI*frequency*(position+i)/sample_rate;
+				double v = 0.0;
+				for (int k = 1; k <= harmonics; ++k)
+					v += std::sin(k*phase)/k;
+				data[i] = static_cast<std::int16_t>(std::lround(v*scale));
+			}
+		};
+	}
+
+	// The fake always run at its own rate, as a device would.
+	int open(int /*rate*/, capture_sink * s) override
+	{
+		sink = s;
+		return sample_rate;
+	}
+
+	int start() override
+	{
+		if (sink == nullptr || running.exchange(true))
+			return -1;
+		thread = std::thread([this]() { run(); });
+		return 0;
+	}
+
+	void run()
+	{
+		std::vector<std::int16_t> block(block_size);
+		std::uint64_t position = 0;
+		auto origin = std::chrono::steady_clock::now();
+		while (running.load(std::memory_order_relaxed)) {
+			generate(block.data(), block.size(), position);
+			position += block.size();
+			if (real_time)
+				std::this_thread::sleep_until(origin+std::chrono::nanoseconds(position*1000000000ull/sample_rate));
+			sink->on_samples(block.data(), block.size(), now());
+		}
+	}
+
+	void stop() override
+	{
+		if (running.exchange(false))
+			thread.join();
+	}
+
+	void close() override
+	{
+		stop();
+		sink = nullptr;
+	}
+
+	char const * name() const override
+	{
+		return "fake";
+	}
+
+};
+
+#endif /* SRC_CAPTURE_BACKEND_HXX_ */
@@ -0,0 +1,231 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_DSP_KERNELS_HXX_
+#define SRC_DSP_KERNELS_HXX_
+
+#include <complex>
+#include <cstdint>
+
+// FIDDLE_SIMD is set by the FIDDLE_SIMD CMake option, the NEON (arm64 and
+// armv7) and SSE2 (x86 and x86_64) kernels are used for 16 bits samples and
+// float spectrum, other types and targets use the scalar loops.
+#ifndef FIDDLE_SIMD
+#define FIDDLE_SIMD 0
+#endif
+
+#if FIDDLE_SIMD && (defined(__ARM_NEON) || defined(__ARM_NEON__))
+#define FIDDLE_SIMD_NEON 1
+#include <arm_neon.h>
+#elif FIDDLE_SIMD && defined(__SSE2__)
+#define FIDDLE_SIMD_SSE2 1
+#include <emmintrin.h>
+#endif
+
+namespace dsp {
+
+// out[i] = data[len-1-i]*window[i], return the sum of squares of data.
+template<typename TX, typename T>
+double window_reversed(TX const * data, std::size_t len, T const * window, T * out)
+{
+	double sum = 0.0;
+	TX const * end = &data[len-1];
+	for (std::size_t i = 0; i < len; ++i, --end) {
+		sum += static_cast<double>(*end)*(*end);
+		out[i] = (*end) * window[i];
+	}
+	return sum;
+}
+
+// Same as window_reversed without the sum of squares.
+template<typename TX, typename T>
+void reverse_window(TX const * data, std::size_t len, T const * window, T * out)
+{
+	TX const * end = &data[len-1];
+	for (std::size_t i = 0; i < len; ++i, --end) {
+		out[i] = (*end) * window[i];
+	}
+}
+
+template<typename TX>
+double sum_of_squares(TX const * data, std::size_t len)
+{
+	double sum = 0.0;
+	for (std::size_t i = 0; i < len; ++i) {
+		sum += static_cast<double>(data[i])*data[i];
+	}
+	return sum;
+}
+
+// out[i] = |in[i]|^2, the peak picking only need the ordering of the bins.
+template<typename T>
+void squared_magnitude(std::complex<T> const * in, T * out, std::size_t len)
+{
+	for (std::size_t i = 0; i < len; ++i) {
+		out[i] = std::norm(in[i]);
+	}
+}
+
+#if FIDDLE_SIMD_NEON
+
+inline double window_reversed(std::int16_t const * data, std::size_t len, float const * window, float * out)
+{
+	std::size_t i = 0;
+	int64x2_t acc = vdupq_n_s64(0);
+	for (; i+8 <= len; i += 8) {
+		int16x8_t v = vld1q_s16(&data[len-8-i]);
+		int16x8_t r = vrev64q_s16(v);
+		r = vcombine_s16(vget_high_s16(r), vget_low_s16(r));
+		float32x4_t lo = vcvtq_f32_s32(vmovl_s16(vget_low_s16(r)));
+		float32x4_t hi = vcvtq_f32_s32(vmovl_s16(vget_high_s16(r)));
+		vst1q_f32(&out[i], vmulq_f32(lo, vld1q_f32(&window[i])));
+		vst1q_f32(&out[i+4], vmulq_f32(hi, vld1q_f32(&window[i+4])));
+		acc = vpadalq_s32(acc, vmull_s16(vget_low_s16(v), vget_low_s16(v)));
+		acc = vpadalq_s32(acc, vmull_s16(vget_high_s16(v), vget_high_s16(v)));
+	}
+	double sum = static_cast<double>(vgetq_lane_s64(acc, 0)+vgetq_lane_s64(acc, 1));
+	// data[0, len-i) is left, reversed it goes at out[i, len).
+	return sum+window_reversed<std::int16_t, float>(data, len-i, window+i, out+i);
+}
+
+inline void reverse_window(std::int16_t const * data, std::size_t len, float const * window, float * out)
+{
+	std::size_t i = 0;
+	for (; i+8 <= len; i += 8) {
+		int16x8_t r = vrev64q_s16(vld1q_s16(&data[len-8-i]));
+		r = vcombine_s16(vget_high_s16(r), vget_low_s16(r));
+		float32x4_t lo = vcvtq_f32_s32(vmovl_s16(vget_low_s16(r)));
+		float32x4_t hi = vcvtq_f32_s32(vmovl_s16(vget_high_s16(r)));
+		vst1q_f32(&out[i], vmulq_f32(lo, vld1q_f32(&window[i])));
+		vst1q_f32(&out[i+4], vmulq_f32(hi, vld1q_f32(&window[i+4])));
+	}
+	reverse_window<std::int16_t, float>(data, len-i, window+i, out+i);
+}
+
+inline double sum_of_squares(std::int16_t const * data, std::size_t len)
+{
+	std::size_t i = 0;
+	int64x2_t acc = vdupq_n_s64(0);
+	for (; i+8 <= len; i += 8) {
+		int16x8_t v = vld1q_s16(&data[i]);
+		acc = vpadalq_s32(acc, vmull_s16(vget_low_s16(v), vget_low_s16(v)));
+		acc = vpadalq_s32(acc, vmull_s16(vget_high_s16(v), vget_high_s16(v)));
+	}
+	double sum = static_cast<double>(vgetq_lane_s64(acc, 0)+vgetq_lane_s64(acc, 1));
+	return sum+sum_of_squares<std::int16_t>(data+i, len-i);
+}
+
+inline void squared_magnitude(std::complex<float> const * in, float * out, std::size_t len)
+{
+	std::size_t i = 0;
+	float const * p = reinterpret_cast<float const *>(in);
+	for (; i+4 <= len; i += 4) {
+		float32x4x2_t c = vld2q_f32(&p[2*i]);
+		vst1q_f32(&out[i], vmlaq_f32(vmulq_f32(c.val[0], c.val[0]), c.val[1], c.val[1]));
+	}
+	squared_magnitude<float>(in+i, out+i, len-i);
+}
+
+#elif FIDDLE_SIMD_SSE2
+
+// The sum of two squares may reach 2^31 thus the madd results are read as
+// unsigned and accumulated in 64 bits.
+inline __m128i _accumulate_squares(__m128i acc, __m128i v)
+{
+	__m128i const zero = _mm_setzero_si128();
+	__m128i m = _mm_madd_epi16(v, v);
+	acc = _mm_add_epi64(acc, _mm_unpacklo_epi32(m, zero));
+	return _mm_add_epi64(acc, _mm_unpackhi_epi32(m, zero));
+}
+
+inline double _horizontal_sum(__m128i acc)
+{
+	alignas(16) std::int64_t s[2];
+	_mm_store_si128(reinterpret_cast<__m128i *>(s), acc);
+	return static_cast<double>(s[0]+s[1]);
+}
+
+inline double window_reversed(std::int16_t const * data, std::size_t len, float const * window, float * out)
+{
+	std::size_t i = 0;
+	__m128i acc = _mm_setzero_si128();
+	for (; i+8 <= len; i += 8) {
+		__m128i v = _mm_loadu_si128(reinterpret_cast<__m128i const *>(&data[len-8-i]));
+		__m128i r = _mm_shufflelo_epi16(v, _MM_SHUFFLE(0, 1, 2, 3));
+		r = _mm_shufflehi_epi16(r, _MM_SHUFFLE(0, 1, 2, 3));
+		r = _mm_shuffle_epi32(r, _MM_SHUFFLE(1, 0, 3, 2));
+		__m128 lo = _mm_cvtepi32_ps(_mm_srai_epi32(_mm_unpacklo_epi16(r, r), 16));
+		__m128 hi = _mm_cvtepi32_ps(_mm_srai_epi32(_mm_unpackhi_epi16(r, r), 16));
+		_mm_storeu_ps(&out[i], _mm_mul_ps(lo, _mm_loadu_ps(&window[i])));
+		_mm_storeu_ps(&out[i+4], _mm_mul_ps(hi, _mm_loadu_ps(&window[i+4])));
+		acc = _accumulate_squares(acc, v);
+	}
+	// data[0, len-i) is left, reversed it goes at out[i, len).
+	return _horizontal_sum(acc)+window_reversed<std::int16_t, float>(data, len-i, window+i, out+i);
+}
+
+inline void reverse_window(std::int16_t const * data, std::size_t len, float const * window, float * out)
+{
+	std::size_t i = 0;
+	for (; i+8 <= len; i += 8) {
+		__m128i r = _mm_loadu_si128(reinterpret_cast<__m128i const *>(&data[len-8-i]));
+		r = _mm_shufflelo_epi16(r, _MM_SHUFFLE(0, 1, 2, 3));
+		r = _mm_shufflehi_epi16(r, _MM_SHUFFLE(0, 1, 2, 3));
+		r = _mm_shuffle_epi32(r, _MM_SHUFFLE(1, 0, 3, 2));
+		__m128 lo = _mm_cvtepi32_ps(_mm_srai_epi32(_mm_unpacklo_epi16(r, r), 16));
+		__m128 hi = _mm_cvtepi32_ps(_mm_srai_epi32(_mm_unpackhi_epi16(r, r), 16));
+		_mm_storeu_ps(&out[i], _mm_mul_ps(lo, _mm_loadu_ps(&window[i])));
+		_mm_storeu_ps(&out[i+4], _mm_mul_ps(hi, _mm_loadu_ps(&window[i+4])));
+	}
+	reverse_window<std::int16_t, float>(data, len-i, window+i, out+i);
+}
+
+inline double sum_of_squares(std::int16_t const * data, std::size_t len)
+{
+	std::size_t i = 0;
+	__m128i acc = _mm_setzero_si128();
+	for (; i+8 <= len; i += 8) {
+		acc = _accumulate_squares(acc, _mm_loadu_si128(reinterpret_cast<__m128i const *>(&data[i])));
+	}
+	return _horizontal_sum(acc)+sum_of_squares<std::int16_t>(data+i, len-i);
+}
+
+inline void squared_magnitude(std::complex<float> const * in, float * out, std::size_t len)
+{
+	std::size_t i = 0;
+	float const * p = reinterpret_cast<float const *>(in);
+	for (; i+4 <= len; i += 4) {
+		__m128 a = _mm_loadu_ps(&p[2*i]);
+		__m128 b = _mm_loadu_ps(&p[2*i+4]);
+		a = _mm_mul_ps(a, a);
+		b = _mm_mul_ps(b, b);
+		__m128 re = _mm_shuffle_ps(a, b, _MM_SHUFFLE(2, 0, 2, 0));
+		__m128 im = _mm_shuffle_ps(a, b, _MM_SHUFFLE(3, 1, 3, 1));
+		_mm_storeu_ps(&out[i], _mm_add_ps(re, im));
+	}
+	squared_magnitude<float>(in+i, out+i, len-i);
+}
+
+#endif
+
+}
+
+#endif /* SRC_DSP_KERNELS_HXX_ */
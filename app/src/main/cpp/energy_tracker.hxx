@@ -0,0 +1,117 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_ENERGY_TRACKER_HXX_
+#define SRC_ENERGY_TRACKER_HXX_
+
+#include <algorithm>
+#include <cmath>
+#include <vector>
+
+// Sum of squares of the last length samples, updated only by the samples
+// pushed since the previous frame. The running sum is recomputed from the
+// history once per length pushed samples to drop the rounding drift.
+template<typename T>
+struct energy_tracker {
+
+	std::vector<T> history;
+	std::size_t position;
+	std::size_t since_resync;
+	double sum;
+
+	energy_tracker() {
+		position = 0;
+		since_resync = 0;
+		sum = 0.0;
+	}
+
+	void init(std::size_t length) {
+		history.assign(std::max<std::size_t>(length, 1), T{});
+		position = 0;
+		since_resync = 0;
+		sum = 0.0;
+	}
+
+	template<typename TX>
+	void push(TX * data, std::size_t len)
+	{
+		std::size_t length = history.size();
+
+		// older samples would be dropped in the same call.
+		if (len > length) {
+			data += len-length;
+			len = length;
+		}
+
+		for (std::size_t i = 0; i < len; ++i) {
+			T x = data[i];
+			T & old = history[position];
+			sum += static_cast<double>(x)*x - static_cast<double>(old)*old;
+			old = x;
+			if (++position >= length)
+				position = 0;
+		}
+
+		since_resync += len;
+		if (since_resync >= length)
+			resync();
+	}
+
+	// Push the samples in [begin, end) of a ring of capacity samples.
+	template<typename TX>
+	void push_ring(TX * ring, std::size_t capacity, std::size_t begin, std::size_t end)
+	{
+		if (end >= begin) {
+			push(&ring[begin], end-begin);
+		} else {
+			push(&ring[begin], capacity-begin);
+			push(&ring[0], end);
+		}
+	}
+
+	void resync()
+	{
+		double s = 0.0;
+		for (auto x: history)
+			s += static_cast<double>(x)*x;
+		sum = s;
+		since_resync = 0;
+	}
+
+	double sum_of_squares() const
+	{
+		return sum;
+	}
+
+	double rms() const
+	{
+		return std::sqrt(std::max(0.0, sum)/history.size());
+	}
+
+	// Level relative to full_scale, clamped to -120 dB for silence.
+	double level_db(double full_scale) const
+	{
+		return std::max(-120.0, 20.0*std::log10(std::max(rms()/full_scale, 1e-6)));
+	}
+
+};
+
+#endif /* SRC_ENERGY_TRACKER_HXX_ */
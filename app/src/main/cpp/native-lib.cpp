@@ -20,103 +20,368 @@ along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
  */
 
 #include <jni.h>
+#include <memory>
 #include <string>
 #include <iostream>
 
-#include "tone_handler.hxx"
+#include "analysis_exchange.hxx"
+#include "native_capture.hxx"
+#ifdef __ANDROID__
+#include "aaudio_backend.hxx"
+#include "opensl_backend.hxx"
+#endif
 
-void setIntField(JNIEnv *env, jobject obj, char const * name, jint value) {
-    jclass c = env->GetObjectClass(obj);
-    // J is the type signature for long:
-    jfieldID longID =  env->GetFieldID(c, name, "I");
-    env->SetIntField(obj, longID, value);
-}
+using handler_t = tone_handler<float>;
 
-jlong getLongField(JNIEnv *env, jobject obj, char const * name) {
-    jclass c = env->GetObjectClass(obj);
-    // J is the type signature for long:
-    jfieldID longID =  env->GetFieldID(c, name, "J");
-    jlong handle = env->GetLongField(obj, longID);
-    return handle;
-}
+// Layout of the float[] filled by the analyze functions, keep in sync with ToneAnalyzer.
+enum : int {
+    ANALYZE_FREQUENCY = 0,
+    ANALYZE_ENERGY = 1,
+    ANALYZE_CONFIDENCE = 2,
+    ANALYZE_LEVEL_DB = 3,
+    ANALYZE_RESULT_SIZE = 4
+};
+
+// The engine is the tiered analysis of the capture ring, see analyzeCapture.
+struct context_analysis : analysis {
+    // Copy of the analysed samples, filled by GetShortArrayRegion to avoid
+    // pinning or copying the whole Java array.
+    std::vector<jshort> window;
+};
+
+// The object behind ToneAnalyzer.opaqueNativeHandle, passed back as the first
+// argument of every native method.
+struct native_context {
+    // The analysing thread run the frames, ToneAnalyzer.prepare build the
+    // next window on any other thread.
+    analysis_exchange<context_analysis> analyses;
+
+    // Rate of the last initSampleRate, guarded by the ToneAnalyzer lock.
+    int sample_rate = 0;
 
-void setLongField(JNIEnv *env, jobject obj, char const * name, jlong value) {
-    jclass c = env->GetObjectClass(obj);
-    // J is the type signature for long:
-    jfieldID longID =  env->GetFieldID(c, name, "J");
-    env->SetLongField(obj, longID, value);
+    // Direct ByteBuffer registered by registerCaptureBuffer, used as a ring of
+    // capture_capacity samples by analyzeCapture.
+    jshort * capture = nullptr;
+    std::size_t capture_capacity = 0;
+
+    // Ring position of the last analyzeCapture, the level tracker is fed with
+    // the samples captured since.
+    std::size_t capture_end = 0;
+
+    stage_metrics metrics;
+
+    // An empty window until the first successful initSampleRate.
+    native_context() {
+        analyses.reset(std::unique_ptr<context_analysis>{new context_analysis});
+    }
+
+    // Return nullptr on error.
+    std::unique_ptr<context_analysis> build(int rate, int interpolation_factor, double sigma_hz) {
+        std::unique_ptr<context_analysis> a{new context_analysis};
+        a->handler.metrics = &metrics;
+        if (a->init(rate, interpolation_factor, sigma_hz) < 0)
+            return nullptr;
+        a->window.resize(a->handler.sample_length);
+        return a;
+    }
+};
+
+// Backends of NativeCapture, keep in sync with NativeCapture.BACKEND_*.
+enum : int {
+    CAPTURE_BACKEND_AAUDIO = 1,
+    CAPTURE_BACKEND_OPENSL = 2,
+    CAPTURE_BACKEND_FAKE = 3
+};
+
+// The object behind NativeCapture.opaqueNativeHandle.
+struct capture_context {
+    std::unique_ptr<capture_backend> backend;
+    native_capture capture;
+
+    // Results copied by nativeCapturePoll.
+    std::vector<capture_result> results;
+    std::vector<jlong> times;
+    std::vector<jfloat> values;
+};
+
+static char const * const TONE_ANALYZER_CLASS = "com/github/gschwind/fiddle_assistant/ToneAnalyzer";
+static char const * const NATIVE_CAPTURE_CLASS = "com/github/gschwind/fiddle_assistant/NativeCapture";
+
+static inline native_context * toContext(jlong handle)
+{
+    return reinterpret_cast<native_context *>(handle);
 }
 
-jfieldID getHandleField(JNIEnv *env, jobject obj)
+static void writeResult(JNIEnv *env, jfloatArray out, handler_t::analysis_result const & result)
 {
-    jclass c = env->GetObjectClass(obj);
-    // J is the type signature for long:
-    return env->GetFieldID(c, "opaqueNativeHandle", "J");
+    jfloat values[ANALYZE_RESULT_SIZE];
+    values[ANALYZE_FREQUENCY] = result.frequency;
+    values[ANALYZE_ENERGY] = result.energy;
+    values[ANALYZE_CONFIDENCE] = result.confidence;
+    values[ANALYZE_LEVEL_DB] = result.level_db;
+    env->SetFloatArrayRegion(out, 0, ANALYZE_RESULT_SIZE, values);
 }
 
-template <typename T>
-T *getHandle(JNIEnv *env, jobject obj)
+// call_time is the System.nanoTime of the Java side before the native call.
+static void recordEntry(stage_metrics & metrics, jlong call_time)
 {
-    jlong handle = env->GetLongField(obj, getHandleField(env, obj));
-    return reinterpret_cast<T *>(handle);
+    metrics.record(stage_metrics::jni_entry, stage_metrics::now()-call_time);
 }
 
-template <typename T>
-void setHandle(JNIEnv *env, jobject obj, T *t)
+static void drainMetrics(JNIEnv *env, stage_metrics & metrics, jlongArray out)
 {
-    jlong handle = reinterpret_cast<jlong>(t);
-    env->SetLongField(obj, getHandleField(env, obj), handle);
+    jlong values[stage_metrics::stage_count*stage_metrics::bucket_count];
+    metrics.drain(values);
+    env->SetLongArrayRegion(out, 0, stage_metrics::stage_count*stage_metrics::bucket_count, values);
 }
 
+static jlong nativeCreate(JNIEnv *env, jclass clazz) {
+    return reinterpret_cast<jlong>(new native_context);
+}
 
-extern "C"
-JNIEXPORT jint JNICALL
-Java_com_github_gschwind_fiddle_1assistant_AudioThread_initSampleRate(JNIEnv *env, jobject thiz, jint sample_rate) {
-    auto * thandler = getHandle<tone_handler<float, 1u<<15u>>(env, thiz);
-    if (thandler == nullptr) {
-        thandler = new tone_handler<float, 1u<<15u>;
-        setHandle(env, thiz, thandler);
+// On error the previous analysis is kept.
+static jint nativeInitSampleRate(JNIEnv *env, jclass clazz, jlong handle, jint sample_rate,
+                                 jint interpolation_factor, jdouble sigma_hz) {
+    auto * ctx = toContext(handle);
+    auto a = ctx->build(sample_rate, interpolation_factor, sigma_hz);
+    if (!a)
+        return -1;
+    ctx->analyses.reset(std::move(a));
+    ctx->sample_rate = sample_rate;
+    return 0;
+}
+
+// Build the FFT length and the window at the current sample rate, off the
+// analysing thread, nativeSwapPending switch to it. On error nothing is
+// changed.
+static jint nativePrepare(JNIEnv *env, jclass clazz, jlong handle, jint interpolation_factor,
+                          jdouble sigma_hz) {
+    auto * ctx = toContext(handle);
+    if (ctx->sample_rate <= 0)
+        return -1;
+
+    auto next = ctx->build(ctx->sample_rate, interpolation_factor, sigma_hz);
+    if (!next)
+        return -1;
+    ctx->analyses.publish(std::move(next));
+    return 0;
+}
+
+// Swap in the prepared window between two frames, the level tracker of a
+// registered capture ring is refilled with the last samples of the new window
+// length. Return the window length.
+static jint nativeSwapPending(JNIEnv *env, jclass clazz, jlong handle) {
+    auto * ctx = toContext(handle);
+    auto * next = ctx->analyses.swap();
+    if (next != nullptr && ctx->capture != nullptr) {
+        std::size_t len = std::min<std::size_t>(next->handler.sample_length, ctx->capture_capacity);
+        std::size_t begin = (ctx->capture_end + ctx->capture_capacity - len) % ctx->capture_capacity;
+        next->handler.track_ring(ctx->capture, ctx->capture_capacity, begin, ctx->capture_end);
     }
+    return ctx->analyses.current->handler.sample_length;
+}
 
-    int err = thandler->init_sample_rate(sample_rate);
+static jint nativeSampleLength(JNIEnv *env, jclass clazz, jlong handle) {
+    return toContext(handle)->analyses.current->handler.sample_length;
+}
 
-    setIntField(env, thiz, "length_of_sample", thandler->sample_length);
+static void nativeAnalyze(JNIEnv *env, jclass clazz, jlong handle, jshortArray arr, jint offset, jint length,
+                          jfloatArray out, jlong call_time) {
+    auto * ctx = toContext(handle);
+    recordEntry(ctx->metrics, call_time);
 
-    return err;
+    auto & a = *ctx->analyses.current;
+    length = std::min<jint>(length, a.window.size());
+    env->GetShortArrayRegion(arr, offset, length, a.window.data());
+    // offset or length out of the array, the exception is thrown on return.
+    if (env->ExceptionCheck())
+        return;
 
+    handler_t::analysis_result result;
+    a.handler.analyze(a.window.data(), length, result);
+    writeResult(env, out, result);
 }
 
-extern "C"
-JNIEXPORT jfloat JNICALL
-Java_com_github_gschwind_fiddle_1assistant_AudioThread_computeFreq(JNIEnv *env, jobject thiz, jshortArray arr,
-jint offset, jint length) {
+static jint nativeRegisterCaptureBuffer(JNIEnv *env, jclass clazz, jlong handle, jobject buffer,
+                                        jint capacity) {
+    auto * ctx = toContext(handle);
+
+    if (capacity <= 0)
+        return -1;
 
-    auto * thandler = getHandle<tone_handler<float, 1u<<15u>>(env, thiz);
+    void * address = env->GetDirectBufferAddress(buffer);
+    jlong size = static_cast<jlong>(static_cast<jlong>(capacity)*sizeof(jshort));
+    if (address == nullptr || env->GetDirectBufferCapacity(buffer) < size)
+        return -1;
 
-    jsize len = env->GetArrayLength(arr);
-    jshort * data = env->GetShortArrayElements(arr, 0);
-    float freq = thandler->compute_freq(&data[offset], length);
-    env->ReleaseShortArrayElements(arr, data, 0);
-    return freq;
+    ctx->capture = reinterpret_cast<jshort *>(address);
+    ctx->capture_capacity = capacity;
+    ctx->capture_end = 0;
+    auto & a = *ctx->analyses.current;
+    a.handler.level.init(a.handler.sample_length);
+    a.engine.reset();
+    return 0;
 }
 
-extern "C"
-JNIEXPORT void JNICALL
-Java_com_github_gschwind_fiddle_1assistant_AudioThread_dispose(JNIEnv *env, jobject thiz) {
-    auto * thandler = getHandle<tone_handler<float, 1u<<15u>>(env, thiz);
-    delete thandler;
-    setHandle<tone_handler<float, 1u<<15u>>(env, thiz, nullptr);
+static void nativeAnalyzeCapture(JNIEnv *env, jclass clazz, jlong handle, jint end, jfloatArray out,
+                                 jlong call_time) {
+    auto * ctx = toContext(handle);
+    recordEntry(ctx->metrics, call_time);
+
+    auto & a = *ctx->analyses.current;
+    a.handler.track_ring(ctx->capture, ctx->capture_capacity, ctx->capture_end, end);
+    ctx->capture_end = end;
+
+    handler_t::analysis_result result;
+    a.engine.analyze_ring(ctx->capture, ctx->capture_capacity, end, result);
+    writeResult(env, out, result);
+}
+
+static void nativeDrainMetrics(JNIEnv *env, jclass clazz, jlong handle, jlongArray out) {
+    drainMetrics(env, toContext(handle)->metrics, out);
+}
+
+static void nativeDispose(JNIEnv *env, jclass clazz, jlong handle) {
+    delete toContext(handle);
+}
+
+static inline capture_context * toCaptureContext(jlong handle)
+{
+    return reinterpret_cast<capture_context *>(handle);
+}
+
+// The fake backend play a harmonic tone of fake_frequency at 44.1 kHz.
+static jlong nativeCaptureCreate(JNIEnv *env, jclass clazz, jint backend, jint input_preset,
+                                 jdouble fake_frequency) {
+    std::unique_ptr<capture_context> ctx{new capture_context};
+#ifndef __ANDROID__
+    static_cast<void>(input_preset); // a host build only has the fake backend
+#endif
+    switch (backend) {
+#ifdef __ANDROID__
+    case CAPTURE_BACKEND_AAUDIO:
+        ctx->backend.reset(new aaudio_backend{input_preset});
+        break;
+    case CAPTURE_BACKEND_OPENSL:
+        ctx->backend.reset(new opensl_backend{input_preset});
+        break;
+#endif
+    case CAPTURE_BACKEND_FAKE:
+        ctx->backend.reset(new fake_backend{fake_backend::tone(44100, fake_frequency), 44100});
+        break;
+    default:
+        return 0;
+    }
+    return reinterpret_cast<jlong>(ctx.release());
+}
+
+static jint nativeCaptureStart(JNIEnv *env, jclass clazz, jlong handle, jint sample_rate, jint frame_rate,
+                               jint interpolation_factor, jdouble sigma_hz) {
+    auto * ctx = toCaptureContext(handle);
+    return ctx->capture.start(ctx->backend.get(), sample_rate, frame_rate, interpolation_factor, sigma_hz);
+}
+
+static void nativeCaptureSetHop(JNIEnv *env, jclass clazz, jlong handle, jint hop) {
+    toCaptureContext(handle)->capture.set_hop(hop);
+}
+
+static jint nativeCaptureConfigure(JNIEnv *env, jclass clazz, jlong handle, jint interpolation_factor,
+                                   jdouble sigma_hz) {
+    return toCaptureContext(handle)->capture.configure(interpolation_factor, sigma_hz);
+}
+
+// times receive the capture and result times of each frame, values its
+// ANALYZE_RESULT_SIZE floats.
+static jint nativeCapturePoll(JNIEnv *env, jclass clazz, jlong handle, jlongArray times, jfloatArray values) {
+    auto * ctx = toCaptureContext(handle);
+    int max = std::min(env->GetArrayLength(times)/2, env->GetArrayLength(values)/ANALYZE_RESULT_SIZE);
+    ctx->results.resize(max);
+    ctx->times.resize(2*max);
+    ctx->values.resize(ANALYZE_RESULT_SIZE*max);
+
+    int count = ctx->capture.poll(ctx->results.data(), max);
+    for (int i = 0; i < count; ++i) {
+        capture_result const & r = ctx->results[i];
+        ctx->times[2*i] = r.capture_time;
+        ctx->times[2*i+1] = r.result_time;
+        jfloat * v = &ctx->values[ANALYZE_RESULT_SIZE*i];
+        v[ANALYZE_FREQUENCY] = r.frequency;
+        v[ANALYZE_ENERGY] = r.energy;
+        v[ANALYZE_CONFIDENCE] = r.confidence;
+        v[ANALYZE_LEVEL_DB] = r.level_db;
+    }
+
+    env->SetLongArrayRegion(times, 0, 2*count, ctx->times.data());
+    env->SetFloatArrayRegion(values, 0, ANALYZE_RESULT_SIZE*count, ctx->values.data());
+    return count;
+}
+
+static jlong nativeCaptureDropped(JNIEnv *env, jclass clazz, jlong handle) {
+    return toCaptureContext(handle)->capture.dropped.load();
+}
+
+static void nativeCaptureDrainMetrics(JNIEnv *env, jclass clazz, jlong handle, jlongArray out) {
+    drainMetrics(env, toCaptureContext(handle)->capture.metrics, out);
+}
+
+static void nativeCaptureStop(JNIEnv *env, jclass clazz, jlong handle) {
+    toCaptureContext(handle)->capture.stop();
+}
+
+static void nativeCaptureDispose(JNIEnv *env, jclass clazz, jlong handle) {
+    delete toCaptureContext(handle);
 }
 
+static JNINativeMethod const tone_analyzer_methods[] = {
+        {"nativeCreate", "()J", reinterpret_cast<void *>(nativeCreate)},
+        {"nativeInitSampleRate", "(JIID)I", reinterpret_cast<void *>(nativeInitSampleRate)},
+        {"nativePrepare", "(JID)I", reinterpret_cast<void *>(nativePrepare)},
+        {"nativeSwapPending", "(J)I", reinterpret_cast<void *>(nativeSwapPending)},
+        {"nativeSampleLength", "(J)I", reinterpret_cast<void *>(nativeSampleLength)},
+        {"nativeAnalyze", "(J[SII[FJ)V", reinterpret_cast<void *>(nativeAnalyze)},
+        {"nativeRegisterCaptureBuffer", "(JLjava/nio/ByteBuffer;I)I", reinterpret_cast<void *>(nativeRegisterCaptureBuffer)},
+        {"nativeAnalyzeCapture", "(JI[FJ)V", reinterpret_cast<void *>(nativeAnalyzeCapture)},
+        {"nativeDrainMetrics", "(J[J)V", reinterpret_cast<void *>(nativeDrainMetrics)},
+        {"nativeDispose", "(J)V", reinterpret_cast<void *>(nativeDispose)},
+};
+
+static JNINativeMethod const native_capture_methods[] = {
+        {"nativeCreate", "(IID)J", reinterpret_cast<void *>(nativeCaptureCreate)},
+        {"nativeStart", "(JIIID)I", reinterpret_cast<void *>(nativeCaptureStart)},
+        {"nativeSetHop", "(JI)V", reinterpret_cast<void *>(nativeCaptureSetHop)},
+        {"nativeConfigure", "(JID)I", reinterpret_cast<void *>(nativeCaptureConfigure)},
+        {"nativePoll", "(J[J[F)I", reinterpret_cast<void *>(nativeCapturePoll)},
+        {"nativeDropped", "(J)J", reinterpret_cast<void *>(nativeCaptureDropped)},
+        {"nativeDrainMetrics", "(J[J)V", reinterpret_cast<void *>(nativeCaptureDrainMetrics)},
+        {"nativeStop", "(J)V", reinterpret_cast<void *>(nativeCaptureStop)},
+        {"nativeDispose", "(J)V", reinterpret_cast<void *>(nativeCaptureDispose)},
+};
+
+static bool registerMethods(JNIEnv *env, char const * name, JNINativeMethod const * methods, jint count)
+{
+    jclass c = env->FindClass(name);
+    if (c == nullptr)
+        return false;
+    bool ok = env->RegisterNatives(c, methods, count) == JNI_OK;
+    env->DeleteLocalRef(c);
+    return ok;
+}
+
+// Resolve everything once when System.loadLibrary("native-lib") run, the per
+// frame calls are then plain static native calls without any lookup.
 extern "C"
-JNIEXPORT jfloat JNICALL
-Java_com_github_gschwind_fiddle_1assistant_AudioThread_sampleEnergy(JNIEnv *env, jobject thiz, jshortArray arr,
-                                                        jint offset, jint length) {
-    auto * thandler = getHandle<tone_handler<float, 1u<<15u>>(env, thiz);
-
-    jsize len = env->GetArrayLength(arr);
-    jshort * data = env->GetShortArrayElements(arr, 0);
-    float freq = thandler->absolute_volume(&data[offset], length);
-    env->ReleaseShortArrayElements(arr, data, 0);
-    return freq;
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK)
+        return JNI_ERR;
+
+    if (!registerMethods(env, TONE_ANALYZER_CLASS, tone_analyzer_methods,
+                         sizeof(tone_analyzer_methods)/sizeof(tone_analyzer_methods[0])))
+        return JNI_ERR;
+
+    if (!registerMethods(env, NATIVE_CAPTURE_CLASS, native_capture_methods,
+                         sizeof(native_capture_methods)/sizeof(native_capture_methods[0])))
+        return JNI_ERR;
+
+    return JNI_VERSION_1_6;
 }
@@ -0,0 +1,219 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_NATIVE_CAPTURE_HXX_
+#define SRC_NATIVE_CAPTURE_HXX_
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <memory>
+#include <vector>
+
+#include "analysis_exchange.hxx"
+#include "capture_backend.hxx"
+
+// Compact result of one frame, the only data that cross to Java.
+struct capture_result {
+	std::int64_t capture_time; // capture time in ns of the last sample of the frame
+	std::int64_t result_time;  // time in ns at the end of its analysis
+	float frequency;
+	float energy;
+	float confidence;
+	float level_db;
+};
+
+// Run the analysis of AudioThread.captureFixedHop in the callback of a
+// capture_backend: the samples are copied into a ring of about 2 seconds,
+// and every hop samples the tiered engine analyse the window ending at the
+// last of them. The callback never allocate nor lock, the results are pushed
+// into a single producer single consumer queue polled by Java.
+struct native_capture : public capture_sink {
+
+	static constexpr std::size_t result_capacity = 256; // power of two
+
+	capture_backend * backend;
+	int sample_rate;
+
+	std::vector<std::int16_t> ring;
+	std::size_t end; // ring position following the last sample
+	std::size_t analysed_end; // ring position of the last analysed frame
+
+	std::atomic<int> hop;
+	std::size_t countdown; // samples to the next frame
+
+	// The callback is the frame thread, configure and poll on the Java side
+	// the control thread.
+	analysis_exchange<analysis> analyses;
+
+	std::vector<capture_result> results;
+	std::atomic<std::uint32_t> head; // written by the callback
+	std::atomic<std::uint32_t> tail; // written by poll
+	std::atomic<std::uint64_t> dropped;
+
+	stage_metrics metrics;
+
+	native_capture() : backend(nullptr), sample_rate(0), end(0), analysed_end(0),
+			hop(1), countdown(0), results(result_capacity), head(0), tail(0), dropped(0) { }
+
+	~native_capture() {
+		stop();
+	}
+
+	// Open and start backend, the analysis is ready before the first
+	// callback. Return the sample rate, negative on error.
+	int start(capture_backend * b, int rate, int frame_rate, int interpolation_factor, double sigma_hz)
+	{
+		stop();
+		backend = b;
+		int actual = backend->open(rate, this);
+		if (actual <= 0) {
+			backend = nullptr;
+			return -1;
+		}
+
+		std::unique_ptr<analysis> a{new analysis};
+		a->handler.metrics = &metrics;
+		if (a->init(actual, interpolation_factor, sigma_hz) < 0) {
+			backend->close();
+			backend = nullptr;
+			return -1;
+		}
+
+		sample_rate = actual;
+		countdown = a->handler.sample_length;
+		analyses.reset(std::move(a));
+		ring.assign(actual*2, 0);
+		end = analysed_end = 0;
+		hop.store(std::max(1, actual/std::max(1, frame_rate)));
+		head.store(0);
+		tail.store(0);
+		dropped.store(0);
+
+		if (backend->start() < 0) {
+			backend->close();
+			backend = nullptr;
+			return -1;
+		}
+		return actual;
+	}
+
+	void stop()
+	{
+		if (backend == nullptr)
+			return;
+		backend->stop();
+		backend->close();
+		backend = nullptr;
+	}
+
+	void set_hop(int hop_size)
+	{
+		hop.store(std::max(1, hop_size), std::memory_order_relaxed);
+	}
+
+	// Prepare the new window on the calling thread, it is used from the next
+	// frame on. Return negative on error, the current window is kept.
+	int configure(int interpolation_factor, double sigma_hz)
+	{
+		std::unique_ptr<analysis> a{new analysis};
+		a->handler.metrics = &metrics;
+		if (a->init(sample_rate, interpolation_factor, sigma_hz) < 0)
+			return -1;
+		analyses.publish(std::move(a));
+		return 0;
+	}
+
+	void on_samples(std::int16_t const * data, std::size_t count, std::int64_t time) override
+	{
+		while (count > 0) {
+			std::size_t n = std::min(count, countdown);
+			std::size_t head_room = std::min(n, ring.size()-end);
+			std::copy(data, data+head_room, &ring[end]);
+			std::copy(data+head_room, data+n, &ring[0]);
+			end = (end+n)%ring.size();
+			data += n;
+			count -= n;
+			countdown -= n;
+
+			if (countdown == 0) {
+				// the remaining samples of the block were captured after the
+				// end of this frame.
+				analyse_frame(time-static_cast<std::int64_t>(count)*1000000000ll/sample_rate);
+				countdown = hop.load(std::memory_order_relaxed);
+			}
+		}
+	}
+
+	void analyse_frame(std::int64_t capture_time)
+	{
+		swap_pending();
+
+		auto & handler = analyses.current->handler;
+		handler.track_ring(ring.data(), ring.size(), analysed_end, end);
+		analysed_end = end;
+
+		tone_handler<float>::analysis_result r;
+		analyses.current->engine.analyze_ring(ring.data(), ring.size(), end, r);
+
+		std::uint32_t h = head.load(std::memory_order_relaxed);
+		if (h-tail.load(std::memory_order_acquire) >= result_capacity) {
+			dropped.fetch_add(1, std::memory_order_relaxed);
+			return;
+		}
+
+		capture_result & out = results[h&(result_capacity-1)];
+		out.capture_time = capture_time;
+		out.result_time = capture_backend::now();
+		out.frequency = r.frequency;
+		out.energy = r.energy;
+		out.confidence = r.confidence;
+		out.level_db = r.level_db;
+		head.store(h+1, std::memory_order_release);
+	}
+
+	// Swap in a pending analysis, its level tracker is refilled from the ring.
+	void swap_pending()
+	{
+		analysis * next = analyses.swap();
+		if (next == nullptr)
+			return;
+
+		std::size_t len = std::min<std::size_t>(next->handler.sample_length, ring.size());
+		next->handler.track_ring(ring.data(), ring.size(), (analysed_end+ring.size()-len)%ring.size(), analysed_end);
+	}
+
+	// Copy at most max pending results into out, return their count.
+	int poll(capture_result * out, int max)
+	{
+		analyses.collect();
+		std::uint32_t t = tail.load(std::memory_order_relaxed);
+		std::uint32_t h = head.load(std::memory_order_acquire);
+		int count = std::min<std::uint32_t>(h-t, max);
+		for (int i = 0; i < count; ++i)
+			out[i] = results[(t+i)&(result_capacity-1)];
+		tail.store(t+count, std::memory_order_release);
+		return count;
+	}
+
+};
+
+#endif /* SRC_NATIVE_CAPTURE_HXX_ */
@@ -0,0 +1,192 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_OPENSL_BACKEND_HXX_
+#define SRC_OPENSL_BACKEND_HXX_
+
+#include <algorithm>
+#include <cstdint>
+#include <vector>
+
+#include <SLES/OpenSLES.h>
+#include <SLES/OpenSLES_Android.h>
+
+#include "capture_backend.hxx"
+
+#ifndef SL_ANDROID_RECORDING_PRESET_UNPROCESSED
+#define SL_ANDROID_RECORDING_PRESET_UNPROCESSED ((SLuint32) 0x00000005)
+#endif
+
+// Input through an OpenSL ES recorder and an android simple buffer queue,
+// for the devices without a usable AAudio.
+struct opensl_backend : public capture_backend {
+
+	static constexpr int buffer_count = 2;
+
+	// Same values as MediaRecorder.AudioSource, 0 keep the default preset.
+	std::int32_t input_preset;
+
+	SLObjectItf engine_object;
+	SLEngineItf engine;
+	SLObjectItf recorder_object;
+	SLRecordItf record;
+	SLAndroidSimpleBufferQueueItf queue;
+
+	std::vector<std::int16_t> buffers;
+	std::size_t buffer_size;
+	int next_buffer;
+	int sample_rate;
+	capture_sink * sink;
+
+	opensl_backend(std::int32_t input_preset = 0) :
+		input_preset(input_preset), engine_object(nullptr), engine(nullptr),
+		recorder_object(nullptr), record(nullptr), queue(nullptr),
+		buffer_size(0), next_buffer(0), sample_rate(0), sink(nullptr) { }
+
+	~opensl_backend() {
+		close();
+	}
+
+	static void on_buffer(SLAndroidSimpleBufferQueueItf q, void * context)
+	{
+		auto * self = reinterpret_cast<opensl_backend *>(context);
+		std::int16_t * data = &self->buffers[self->next_buffer*self->buffer_size];
+		self->sink->on_samples(data, self->buffer_size, now());
+		(*q)->Enqueue(q, data, self->buffer_size*sizeof(std::int16_t));
+		self->next_buffer = (self->next_buffer+1)%buffer_count;
+	}
+
+	// OpenSL ES has no preset for every MediaRecorder.AudioSource.
+	static SLuint32 recording_preset(std::int32_t audio_source)
+	{
+		switch (audio_source) {
+		case 6: // VOICE_RECOGNITION
+			return SL_ANDROID_RECORDING_PRESET_VOICE_RECOGNITION;
+		case 9: // UNPROCESSED
+			return SL_ANDROID_RECORDING_PRESET_UNPROCESSED;
+		default:
+			return SL_ANDROID_RECORDING_PRESET_NONE;
+		}
+	}
+
+	int open(int rate, capture_sink * s) override
+	{
+		close();
+		// OpenSL ES cannot report the device rate.
+		sample_rate = rate > 0 ? rate : 48000;
+		// about 5 ms per buffer.
+		buffer_size = std::max(64, sample_rate/200);
+		buffers.assign(buffer_size*buffer_count, 0);
+		next_buffer = 0;
+
+		if (slCreateEngine(&engine_object, 0, nullptr, 0, nullptr, nullptr) != SL_RESULT_SUCCESS
+				|| (*engine_object)->Realize(engine_object, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS
+				|| (*engine_object)->GetInterface(engine_object, SL_IID_ENGINE, &engine) != SL_RESULT_SUCCESS) {
+			close();
+			return -1;
+		}
+
+		SLDataLocator_IODevice device = {SL_DATALOCATOR_IODEVICE, SL_IODEVICE_AUDIOINPUT,
+				SL_DEFAULTDEVICEID_AUDIOINPUT, nullptr};
+		SLDataSource source = {&device, nullptr};
+
+		SLDataLocator_AndroidSimpleBufferQueue locator = {SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE,
+				static_cast<SLuint32>(buffer_count)};
+		SLDataFormat_PCM format = {SL_DATAFORMAT_PCM, 1, static_cast<SLuint32>(sample_rate)*1000,
+				SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
+				SL_SPEAKER_FRONT_CENTER, SL_BYTEORDER_LITTLEENDIAN};
+		SLDataSink destination = {&locator, &format};
+
+		SLInterfaceID const ids[] = {SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_ANDROIDCONFIGURATION};
+		SLboolean const required[] = {SL_BOOLEAN_TRUE, SL_BOOLEAN_FALSE};
+		if ((*engine)->CreateAudioRecorder(engine, &recorder_object, &source, &destination,
+				2, ids, required) != SL_RESULT_SUCCESS) {
+			recorder_object = nullptr;
+			close();
+			return -1;
+		}
+
+		// The preset must be set before Realize, a refused preset keep the default.
+		SLuint32 preset = recording_preset(input_preset);
+		SLAndroidConfigurationItf configuration;
+		if (preset != SL_ANDROID_RECORDING_PRESET_NONE
+				&& (*recorder_object)->GetInterface(recorder_object, SL_IID_ANDROIDCONFIGURATION,
+						&configuration) == SL_RESULT_SUCCESS) {
+			(*configuration)->SetConfiguration(configuration, SL_ANDROID_KEY_RECORDING_PRESET,
+					&preset, sizeof(preset));
+		}
+
+		if ((*recorder_object)->Realize(recorder_object, SL_BOOLEAN_FALSE) != SL_RESULT_SUCCESS
+				|| (*recorder_object)->GetInterface(recorder_object, SL_IID_RECORD, &record) != SL_RESULT_SUCCESS
+				|| (*recorder_object)->GetInterface(recorder_object, SL_IID_ANDROIDSIMPLEBUFFERQUEUE,
+						&queue) != SL_RESULT_SUCCESS
+				|| (*queue)->RegisterCallback(queue, &on_buffer, this) != SL_RESULT_SUCCESS) {
+			close();
+			return -1;
+		}
+
+		sink = s;
+		return sample_rate;
+	}
+
+	int start() override
+	{
+		if (record == nullptr)
+			return -1;
+		for (int i = 0; i < buffer_count; ++i) {
+			if ((*queue)->Enqueue(queue, &buffers[i*buffer_size], buffer_size*sizeof(std::int16_t)) != SL_RESULT_SUCCESS)
+				return -1;
+		}
+		next_buffer = 0;
+		if ((*record)->SetRecordState(record, SL_RECORDSTATE_RECORDING) != SL_RESULT_SUCCESS)
+			return -1;
+		return 0;
+	}
+
+	void stop() override
+	{
+		if (record == nullptr)
+			return;
+		(*record)->SetRecordState(record, SL_RECORDSTATE_STOPPED);
+		(*queue)->Clear(queue);
+	}
+
+	void close() override
+	{
+		if (recorder_object != nullptr)
+			(*recorder_object)->Destroy(recorder_object);
+		if (engine_object != nullptr)
+			(*engine_object)->Destroy(engine_object);
+		recorder_object = engine_object = nullptr;
+		engine = nullptr;
+		record = nullptr;
+		queue = nullptr;
+		sink = nullptr;
+	}
+
+	char const * name() const override
+	{
+		return "opensl";
+	}
+
+};
+
+#endif /* SRC_OPENSL_BACKEND_HXX_ */
@@ -0,0 +1,258 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_PITCH_ENGINE_HXX_
+#define SRC_PITCH_ENGINE_HXX_
+
+#include <algorithm>
+#include <cmath>
+#include <vector>
+
+#include "tone_handler.hxx"
+
+// Cheap time domain pitch estimate, the cumulative mean normalized
+// difference of YIN over the analysis window decimated around 11 kHz.
+template<typename T>
+struct coarse_pitch {
+
+	// Search range of the fundamental.
+	static constexpr double min_frequency = 150.0;
+	static constexpr double max_frequency = 3000.0;
+	// YIN absolute threshold on the normalized difference.
+	static constexpr double threshold = 0.2;
+	// Periods of the lowest frequency the difference is integrated over.
+	static constexpr int periods = 3;
+	// Length of the anti-alias low-pass, per decimated sample, and its cut
+	// off relative to the decimated Nyquist frequency.
+	static constexpr int taps_per_phase = 6;
+	static constexpr double cutoff = 0.8;
+
+	int decimation;
+	double decimated_rate;
+	int min_lag;
+	int max_lag;
+	int length;
+	// Samples skipped before the end of the window, the decimated samples are
+	// centered on the window of the spectral path.
+	int lead;
+
+	// Raw samples of the span, most recent first, and the low-pass applied
+	// before the decimation, both empty without decimation.
+	std::vector<T> input;
+	std::vector<T> fir;
+
+	std::vector<T> buffer;
+	std::vector<T> diff;
+
+	// 1 minus the normalized difference at the returned lag.
+	double clarity;
+
+	coarse_pitch() {
+		decimation = 1;
+		decimated_rate = 0.0;
+		min_lag = max_lag = length = lead = 0;
+		clarity = 0.0;
+	}
+
+	void init(int sample_rate, int sample_length)
+	{
+		decimation = std::max(1, sample_rate/11025);
+		decimated_rate = static_cast<double>(sample_rate)/decimation;
+
+		fir.clear();
+		if (decimation > 1) {
+			// Blackman windowed sinc, unity gain at DC.
+			int taps = taps_per_phase*decimation+1;
+			double fc = cutoff*0.5/decimation;
+			double sum = 0.0;
+			fir.resize(taps);
+			for (int k = 0; k < taps; ++k) {
+				double x = k-0.5*(taps-1);
+				double w = 0.42-0.5*std::cos(2.0*M_PI*k/(taps-1))+0.08*std::cos(4.0*M_PI*k/(taps-1));
+				double h = x == 0.0 ? 2.0*fc : std::sin(2.0*M_PI*fc*x)/(M_PI*x);
+				sum += fir[k] = w*h;
+			}
+			for (auto & h: fir)
+				h /= sum;
+		}
+
+		// The low-pass read tail samples past the oldest decimated one.
+		int tail = std::max<int>(0, fir.size()-1);
+		length = std::max(0, sample_length-tail)/decimation;
+		min_lag = std::max(2, static_cast<int>(decimated_rate/max_frequency));
+		max_lag = std::min(length/2, static_cast<int>(decimated_rate/min_frequency)+1);
+		// Only the span integrated by estimate at the longest lag is loaded.
+		int span = std::min(length, std::min(length-max_lag-1, periods*max_lag)+max_lag+2);
+		lead = (sample_length-span*decimation-tail)/2;
+		length = span;
+		input.assign(fir.empty() ? 0 : length*decimation+tail, T{});
+		buffer.assign(length, T{});
+		diff.assign(max_lag+2, T{});
+		clarity = 0.0;
+	}
+
+	// Load the span preceding end in a ring of capacity samples, most recent
+	// first, low-passed and decimated.
+	template<typename TX>
+	void load_ring(TX * ring, std::size_t capacity, std::size_t end)
+	{
+		T * out = fir.empty() ? buffer.data() : input.data();
+		std::size_t count = fir.empty() ? buffer.size() : input.size();
+		std::size_t p = (end+capacity-lead%capacity)%capacity;
+		for (std::size_t i = 0; i < count; ++i) {
+			p = (p == 0) ? capacity-1 : p-1;
+			out[i] = ring[p];
+		}
+
+		if (fir.empty())
+			return;
+
+		std::size_t taps = fir.size();
+		for (int i = 0; i < length; ++i) {
+			T const * x = &input[i*decimation];
+			T acc = 0;
+			for (std::size_t k = 0; k < taps; ++k)
+				acc += fir[k]*x[k];
+			buffer[i] = acc;
+		}
+	}
+
+	// Return the estimated frequency, NaN when no periodicity is found.
+	double estimate()
+	{
+		clarity = 0.0;
+		if (max_lag <= min_lag)
+			return std::nan("");
+
+		int n = std::min(length-max_lag-1, periods*max_lag);
+		double running = 0.0;
+		int best = -1;
+		diff[0] = 1.0;
+		for (int tau = 1; tau <= max_lag+1; ++tau) {
+			double d = 0.0;
+			T const * a = &buffer[0];
+			T const * b = &buffer[tau];
+			for (int j = 0; j < n; ++j) {
+				double x = a[j]-b[j];
+				d += x*x;
+			}
+			running += d;
+			diff[tau] = running > 0.0 ? d*tau/running : 1.0;
+
+			// stop at the first local minimum below the threshold.
+			if (tau-1 >= min_lag && diff[tau-1] < threshold && diff[tau] >= diff[tau-1]) {
+				best = tau-1;
+				break;
+			}
+		}
+
+		if (best < 0)
+			return std::nan("");
+
+		double a = diff[best-1];
+		double b = diff[best];
+		double c = diff[best+1];
+		double d = a-2.0*b+c;
+		double lag = best;
+		if (d > 0.0)
+			lag += 0.5*(a-c)/d;
+
+		clarity = 1.0-std::max(0.0, std::min(1.0, b));
+		return decimated_rate/lag;
+	}
+
+};
+
+// Run the coarse estimate every frame and the spectral path of tone_handler
+// only when the coarse estimate drift more than max_coarse_drift cents from
+// the last refinement, when its clarity drops, or after max_coarse_frames
+// frames. In between the refined frequency follow the relative change of the
+// coarse estimate, its bias is not constant over a wider drift.
+template<typename T>
+struct pitch_engine {
+
+	static constexpr double min_clarity = 0.75;
+	static constexpr int max_coarse_frames = 8;
+	static constexpr double max_coarse_drift = 10.0;
+
+	tone_handler<T> & handler;
+	coarse_pitch<T> coarse;
+
+	bool has_reference;
+	double reference_frequency;
+	double reference_coarse;
+	double reference_confidence;
+	int coarse_frames;
+
+	pitch_engine(tone_handler<T> & handler) : handler(handler) {
+		reset();
+	}
+
+	void reset()
+	{
+		has_reference = false;
+		reference_frequency = reference_coarse = reference_confidence = 0.0;
+		coarse_frames = 0;
+	}
+
+	void init()
+	{
+		coarse.init(handler._sample_rate, handler.sample_length);
+		reset();
+	}
+
+	// Same as tone_handler::analyze_ring, the level tracker of the handler
+	// must be up to date. Return true when the spectral path was run.
+	template<typename TX>
+	bool analyze_ring(TX * ring, std::size_t capacity, std::size_t end,
+			typename tone_handler<T>::analysis_result & result)
+	{
+		double f;
+		{
+			stage_timer t{handler.metrics, stage_metrics::coarse_pitch};
+			coarse.load_ring(ring, capacity, end);
+			f = coarse.estimate();
+		}
+
+		if (has_reference && !std::isnan(f) && coarse.clarity >= min_clarity
+				&& coarse_frames < max_coarse_frames
+				&& std::fabs(1200.0*std::log2(f/reference_coarse)) < max_coarse_drift) {
+			++coarse_frames;
+			result.frequency = reference_frequency*f/reference_coarse;
+			result.confidence = std::min(reference_confidence, coarse.clarity);
+			result.energy = handler.level.sum_of_squares()/handler._sample_rate;
+			result.level_db = handler.level.level_db(handler.pcm_full_scale);
+			return false;
+		}
+
+		handler.analyze_ring(ring, capacity, end, result);
+
+		coarse_frames = 0;
+		has_reference = !std::isnan(f) && !std::isnan(result.frequency) && coarse.clarity >= min_clarity;
+		reference_frequency = result.frequency;
+		reference_coarse = f;
+		reference_confidence = result.confidence;
+		return true;
+	}
+
+};
+
+#endif /* SRC_PITCH_ENGINE_HXX_ */
@@ -0,0 +1,101 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#ifndef SRC_STAGE_METRICS_HXX_
+#define SRC_STAGE_METRICS_HXX_
+
+#include <algorithm>
+#include <array>
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+
+// Log2 histograms of the duration of the stages of the analysis, bucket i
+// count the durations in [2^i, 2^(i+1)) ns. Recording is a relaxed atomic
+// increment, the counts are drained from another thread.
+struct stage_metrics {
+
+	// Keep in sync with PipelineMetrics, the others stages are recorded on the
+	// Java side.
+	enum : int {
+		jni_entry = 1,
+		window = 2,
+		fft = 3,
+		magnitude = 4,
+		find_frequency = 5,
+		coarse_pitch = 6,
+		stage_count = 9
+	};
+
+	static constexpr int bucket_count = 32;
+
+	std::array<std::atomic<std::uint32_t>, stage_count*bucket_count> buckets;
+
+	stage_metrics() {
+		for (auto & b: buckets)
+			b.store(0, std::memory_order_relaxed);
+	}
+
+	// Same clock as System.nanoTime.
+	static std::int64_t now()
+	{
+		return std::chrono::duration_cast<std::chrono::nanoseconds>(
+				std::chrono::steady_clock::now().time_since_epoch()).count();
+	}
+
+	static int bucket(std::int64_t ns)
+	{
+		if (ns <= 1)
+			return 0;
+		return std::min(bucket_count-1, 63-__builtin_clzll(static_cast<std::uint64_t>(ns)));
+	}
+
+	void record(int stage, std::int64_t ns)
+	{
+		buckets[stage*bucket_count+bucket(ns)].fetch_add(1, std::memory_order_relaxed);
+	}
+
+	// Copy the counts into out, stage_count*bucket_count values, and reset them.
+	template<typename TX>
+	void drain(TX * out)
+	{
+		for (int i = 0; i < stage_count*bucket_count; ++i)
+			out[i] = buckets[i].exchange(0, std::memory_order_relaxed);
+	}
+
+};
+
+// Record the lifetime of the timer as stage, nothing when metrics is null.
+struct stage_timer {
+	stage_metrics * metrics;
+	int stage;
+	std::int64_t start;
+
+	stage_timer(stage_metrics * metrics, int stage) :
+		metrics(metrics), stage(stage), start(metrics != nullptr ? stage_metrics::now() : 0) { }
+
+	~stage_timer() {
+		if (metrics != nullptr)
+			metrics->record(stage, stage_metrics::now()-start);
+	}
+};
+
+#endif /* SRC_STAGE_METRICS_HXX_ */
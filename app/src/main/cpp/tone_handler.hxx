@@ -27,23 +27,63 @@ along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
 #include <vector>
 
 #include "kissfft.hh"
+#include "energy_tracker.hxx"
+#include "dsp_kernels.hxx"
+#include "stage_metrics.hxx"
 
 
-template<typename T, std::size_t g_fft_n>
+template<typename T>
 struct tone_handler {
 
-	std::array<typename kissfft<T>::cpx_t, g_fft_n> g_fft_ibuffer{kissfft<float>::cpx_t{}};
-	std::array<typename kissfft<T>::cpx_t, g_fft_n> g_fft_obuffer{kissfft<float>::cpx_t{}};
-	kissfft<T> g_fft_plan{g_fft_n, false};
-	std::array<T, g_fft_n> gaussian_filter;
-	std::array<T, g_fft_n> spectrum;
+	// The historical transform length, some tuned values below are expressed
+	// relative to it.
+	static constexpr int reference_fft_n = 1u<<15u;
 
+	// The input is real, thus we run a half length complex FFT over the packed
+	// samples and let kissfft::transform_real unpack the g_fft_n/2 first bins.
+	std::vector<T> g_fft_ibuffer;
+	std::vector<typename kissfft<T>::cpx_t> g_fft_obuffer;
+	kissfft<T> g_fft_plan{1, false};
+	std::vector<T> gaussian_filter;
+	std::vector<T> spectrum; // squared magnitudes of the first g_fft_n/2 bins
+
+	int g_fft_n;
 	double freq_factor;
 	int sample_length;
 	int _sample_rate;
+	int min_peak_bin;
 
 	double max_spec;
 
+	// Peak picking storage, find_frequency give up above max_peaks peaks and
+	// keep at most max_harmonics of them, plus the 0 frequency.
+	static constexpr int max_peaks = 15;
+	static constexpr int max_harmonics = 8;
+	std::array<int, max_peaks> max_args;
+	std::array<T, max_harmonics+1> peaks;
+	std::array<T, max_harmonics> diff;
+
+	// How well the retained peaks of the last find_frequency sit on the
+	// harmonics of the returned frequency, weighted by their magnitude, from 0
+	// (no pitch) to 1.
+	double confidence;
+
+	// Full scale of the 16 bits PCM samples, reference of the dB levels.
+	static constexpr double pcm_full_scale = 32768.0;
+
+	// Energy of the last sample_length captured samples, see track_ring.
+	energy_tracker<T> level;
+
+	// Stage durations are recorded there when set.
+	stage_metrics * metrics;
+
+	struct analysis_result {
+		double frequency;
+		double energy;
+		double confidence;
+		double level_db;
+	};
+
 	static inline constexpr float _PI() { return std::atan(1.0)*4.0; }
 
 	// not-normed gaussian.
@@ -54,25 +94,61 @@ struct tone_handler {
 
 	tone_handler () {
 		max_spec = 0.0;
+		confidence = 0.0;
+		g_fft_n = 0;
+		freq_factor = 0.0;
+		sample_length = 0;
+		_sample_rate = 0;
+		min_peak_bin = 0;
+		metrics = nullptr;
 	}
 
-	int init_sample_rate(int sample_rate) {
+	// Default width of the gaussian window, as the sigma in Hz of the
+	// gaussian it is convolved with in the frequency domain.
+	static constexpr double default_sigma_hz = 20.0;
+
+	// The FFT length is the smallest power of two greater or equal to
+	// sample_length*interpolation_factor. The missing precision of the short
+	// transform is recovered by the peak interpolation in find_frequency, for
+	// any interpolation_factor >= 1 harmonic tones stay within 1 cent of the
+	// former 1<<15 transform at every supported sample rate. On error the
+	// previous state is left untouched.
+	int init_sample_rate(int sample_rate, int interpolation_factor, double sigma_hz = default_sigma_hz) {
 		// I want convolve my fourier transform with 20 Hz sigma.
 		// This mean omega is 2*pi*20, that mean sigma in time space must be 1.0/(2*pi*20)
 		// Thus to have a good gausian I need at less 3 sigma at both side of the center of the gaussian.
 		// Let'sgo for 4*sigma in both side
 		// The sample length should be:
 
-		_sample_rate = sample_rate;
-		freq_factor = static_cast<double>(sample_rate)/static_cast<double>(g_fft_n);
+		if (interpolation_factor < 1 || sample_rate <= 0 || !(sigma_hz > 0.0))
+			return -1;
 
 		double time_delta = 1.0/sample_rate;
-		double sigma = 1.0/(2.0*_PI()*20.0);
+		double sigma = 1.0/(2.0*_PI()*sigma_hz);
 		// sample_length = 2.0*4.0*sigma/time_delta; that can be simplified as follow
-		sample_length = 6.0*sample_rate*sigma+1;
+		double length = 6.0*sample_rate*sigma+1;
+
+		int fft_n = 2;
+		while (fft_n < length*interpolation_factor && fft_n <= reference_fft_n)
+			fft_n <<= 1;
+
+		if (fft_n > reference_fft_n)
+			return -1;
+
+		_sample_rate = sample_rate;
+		sample_length = length;
+		g_fft_n = fft_n;
 
-		if (sample_length > g_fft_n)
-		    return -1;
+		freq_factor = static_cast<double>(sample_rate)/static_cast<double>(g_fft_n);
+		min_peak_bin = 200*g_fft_n/reference_fft_n;
+
+		g_fft_plan.assign(g_fft_n/2, false);
+		g_fft_ibuffer.assign(g_fft_n, T{});
+		g_fft_obuffer.assign(g_fft_n/2, typename kissfft<T>::cpx_t{});
+		gaussian_filter.assign(g_fft_n, T{});
+		spectrum.assign(g_fft_n/2, T{});
+		level.init(sample_length);
+		max_spec = 0.0;
 
 		double sum_fix = 0.0;
 		for (int i = 0; i < sample_length; ++i) {
@@ -87,9 +163,41 @@ struct tone_handler {
 
 	}
 
+	// Fit a parabola over the log magnitude of the bins around the peak i. The
+	// spectrum of a gaussian window is a gaussian, thus its log is a parabola
+	// and the fit is exact for a pure tone.
+	static float interpolate_peak(T const * bgn, int i)
+	{
+		double a = std::log(std::max<double>(bgn[i-1], 1e-30));
+		double b = std::log(std::max<double>(bgn[i], 1e-30));
+		double c = std::log(std::max<double>(bgn[i+1], 1e-30));
+		double d = a-2.0*b+c;
+		if (d >= 0.0)
+			return i;
+		return i+0.5*(a-c)/d;
+	}
+
+	// peaks[1..count] are the interpolated positions of the bins max_args[0..count-1].
+	double harmonicity(T const * bgn, double fundamental, int count) const
+	{
+		double sum = 0.0;
+		double weight = 0.0;
+		for (int i = 1; i <= count; ++i) {
+			double h = peaks[i]/fundamental;
+			double w = std::sqrt(bgn[max_args[i-1]]);
+			sum += w*(1.0-2.0*std::min(0.5, std::fabs(h-std::floor(h+0.5))));
+			weight += w;
+		}
+		if (weight <= 0.0)
+			return 0.0;
+		return sum/weight;
+	}
+
 	double find_frequency(T * bgn, T * end)
 	{
 
+		confidence = 0.0;
+
 		auto max_elem = std::max_element(bgn, end);
 		float freq = std::distance(bgn, max_elem);
 		float max = *max_elem;
@@ -104,83 +212,152 @@ struct tone_handler {
 //		if (max < 0.2*max_spec)
 //			return std::nan("");
 
-		std::vector<int> max_args;
-		max_args.reserve(20); // avoid useless realloc.
+		int max_args_count = 0;
 
 		//max_args.push_back(0); // 0 is always a valid frequency for the diff
-		for (int i = 200; i < (g_fft_n/2-1); ++i) {
-			if (bgn[i] < max*0.05)
+		for (int i = min_peak_bin; i < (g_fft_n/2-1); ++i) {
+			// 5% of the max magnitude, the spectrum hold squared magnitudes.
+			if (bgn[i] < max*(0.05*0.05))
 				continue;
 			if (bgn[i-1] > bgn[i])
 				continue;
 			if (bgn[i+1] > bgn[i])
 				continue;
-			max_args.push_back(i);
 
-			if (max_args.size() > 15)
+			if (max_args_count >= max_peaks)
 				return std::nan("");
 
+			max_args[max_args_count++] = i;
+
 		}
 
-		if (max_args.size() <= 1)
+		if (max_args_count <= 1)
 			return std::nan("");
-		if (max_args.size() <= 2)
-			return max_args[1];
 
+		// Keep at most 8 hamonics, regarding max picks
+		int harmonics_count = std::min(max_args_count, static_cast<int>(max_harmonics));
+		std::nth_element(max_args.begin(), max_args.begin()+harmonics_count-1, max_args.begin()+max_args_count,
+				[bgn](int a, int b) -> bool { return bgn[a] > bgn[b]; });
 
-		// sort regarding max picks
-		std::sort(max_args.begin(), max_args.end(), [bgn](int a, int b) -> bool { return bgn[a] > bgn[b]; });
+		// Sort again regarding freq
+		std::sort(max_args.begin(), max_args.begin()+harmonics_count);
 
-		// Keep at most 8 hamonics
-		max_args.resize(std::min<int>(max_args.size(), 8));
+		int peaks_count = harmonics_count+1;
+		peaks[0] = 0.0f;
+		for (int i = 1; i < peaks_count; ++i) {
+			peaks[i] = interpolate_peak(bgn, max_args[i-1]);
+		}
 
+		float max_freq = peaks[std::min<int>(peaks_count-1, 5)];
 
-		// Sort again regarding freq
-		max_args.push_back(0);
-		std::sort(max_args.begin(), max_args.end());
-		float max_freq = max_args[std::min<int>(max_args.size()-1, 5)];
+		int diff_count = peaks_count-1;
+		for (int i = 0; i < diff_count; ++i) {
+			diff[i] = peaks[i+1]-peaks[i];
+		}
 
-		std::vector<T> diff;
-		diff.resize(max_args.size()-1);
+		std::nth_element(diff.begin(), diff.begin()+diff_count/2, diff.begin()+diff_count);
+		float diff_min = diff[diff_count/2];
 
-		for (int i = 0; i < max_args.size()-1; ++i) {
-			diff[i] = max_args[i+1]-max_args[i];
-		}
+		double fundamental = max_freq/std::floor(max_freq/diff_min+0.5);
+		confidence = harmonicity(bgn, fundamental, peaks_count-1);
+
+		return fundamental*freq_factor;
+	}
+
+	// Load len samples reversed into the FFT input starting at offset.
+	template<typename TX>
+	void load_reversed(TX * data, std::size_t len, std::size_t offset)
+	{
+		// reverse the signal, ensuring the analysis occure to last aquired data.
+		dsp::reverse_window(data, len, &gaussian_filter[offset], &g_fft_ibuffer[offset]);
+	}
+
+	template<typename TX>
+	void load_window(TX * data, std::size_t len)
+	{
+		stage_timer t{metrics, stage_metrics::window};
+		load_reversed(data, len, 0);
+	}
 
-		std::sort(diff.begin(), diff.end());
-		float diff_min = diff[diff.size()/2];
+	// Same as load_window and return the sum of squares of the raw samples,
+	// in the same pass.
+	template<typename TX>
+	double load_window_energy(TX * data, std::size_t len)
+	{
+		stage_timer t{metrics, stage_metrics::window};
+		return dsp::window_reversed(data, len, &gaussian_filter[0], &g_fft_ibuffer[0]);
+	}
 
-		return max_freq/std::floor(max_freq/diff_min+0.5)*freq_factor;
+	// Same as load_window for the len samples preceding end in a ring of
+	// capacity samples, the window may wrap to the tail of the ring. The
+	// energy of the ring is tracked by level instead.
+	template<typename TX>
+	void load_window_ring(TX * ring, std::size_t capacity, std::size_t end, std::size_t len)
+	{
+		stage_timer t{metrics, stage_metrics::window};
+		std::size_t head = std::min(len, end);
+		load_reversed(&ring[end-head], head, 0);
+		if (head < len)
+			load_reversed(&ring[capacity-(len-head)], len-head, head);
 	}
 
+	double spectrum_frequency()
+	{
+		{
+			stage_timer t{metrics, stage_metrics::fft};
+			g_fft_plan.transform_real(&g_fft_ibuffer[0], &g_fft_obuffer[0]);
+		}
+
+		{
+			stage_timer t{metrics, stage_metrics::magnitude};
+			dsp::squared_magnitude(&g_fft_obuffer[1], &spectrum[1], g_fft_n/2-1);
+		}
+
+		stage_timer t{metrics, stage_metrics::find_frequency};
+		return find_frequency(spectrum.data(), spectrum.data()+g_fft_n/2);
+	}
 
 	template<typename TX>
 	double compute_freq(TX * data, std::size_t len)
 	{
 		len = std::min<std::size_t>(len, sample_length);
+		load_window(data, len);
+		return spectrum_frequency();
+	}
 
-		// reverse the signal, ensuring the analysis occure to last aquired data.
-		TX * end = &data[len-1];
-		for (int i = 0; i < len; ++i, --end) {
-            g_fft_ibuffer[i] = std::complex<T>((*end) * gaussian_filter[i], 0.0f);
-        }
-
-		g_fft_plan.transform(&g_fft_ibuffer[0], &g_fft_obuffer[0]);
+	// Frequency, energy and confidence of the window in a single pass over the data.
+	template<typename TX>
+	void analyze(TX * data, std::size_t len, analysis_result & result)
+	{
+		len = std::min<std::size_t>(len, sample_length);
+		double sum = load_window_energy(data, len);
+		result.energy = sum/_sample_rate;
+		result.level_db = std::max(-120.0, 20.0*std::log10(std::max(std::sqrt(sum/len)/pcm_full_scale, 1e-6)));
+		result.frequency = spectrum_frequency();
+		result.confidence = confidence;
+	}
 
-		for (int i = 1; i < g_fft_n/2; ++i) {
-			spectrum[i] = std::abs(g_fft_obuffer[i]);
-		}
+	// Feed the level tracker with the samples captured in [begin, end) of the ring.
+	template<typename TX>
+	void track_ring(TX * ring, std::size_t capacity, std::size_t begin, std::size_t end)
+	{
+		level.push_ring(ring, capacity, begin, end);
+	}
 
-		return find_frequency(&spectrum[0], &spectrum[g_fft_n/2]);
+	template<typename TX>
+	void analyze_ring(TX * ring, std::size_t capacity, std::size_t end, analysis_result & result)
+	{
+		std::size_t len = std::min<std::size_t>(capacity, sample_length);
+		load_window_ring(ring, capacity, end, len);
+		result.energy = level.sum_of_squares()/_sample_rate;
+		result.level_db = level.level_db(pcm_full_scale);
+		result.frequency = spectrum_frequency();
+		result.confidence = confidence;
 	}
 
 	template<typename TX>
 	double absolute_volume(TX * data, std::size_t len) {
-	    double sum = 0.0;
-	    for (int i = 0; i < len; ++i) {
-	        sum += data[i]*data[i];
-	    }
-	    return sum/_sample_rate;
+	    return dsp::sum_of_squares(data, len)/_sample_rate;
 	}
 
 };
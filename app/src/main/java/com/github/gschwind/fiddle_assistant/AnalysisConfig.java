@@ -0,0 +1,89 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+// Immutable parameters of the analysis. A new snapshot is published to
+// AudioThread.setConfig and applied by the audio loop between two frames.
+public final class AnalysisConfig {
+
+    // Range of windowSigmaHz, the widest window stay below a second and fit
+    // in the 2 seconds capture buffers of AudioThread.
+    public static final double MIN_WINDOW_SIGMA_HZ = 5.0;
+    public static final double MAX_WINDOW_SIGMA_HZ = 80.0;
+
+    public static final AnalysisConfig DEFAULT = new AnalysisConfig(30, 2, 20.0, 440.0);
+
+    // Analysed frames per second, the hop is sampleRate/frameRate samples.
+    public final int frameRate;
+
+    // The FFT length is the window length times this factor rounded up to a
+    // power of two, the native side interpolate the spectrum peaks.
+    public final int interpolationFactor;
+
+    // Width of the gaussian window, as the sigma in Hz of the gaussian the
+    // spectrum is convolved with. The window is about 1/sigma long.
+    public final double windowSigmaHz;
+
+    // Frequency of A4.
+    public final double referencePitch;
+
+    public AnalysisConfig(int frameRate, int interpolationFactor, double windowSigmaHz, double referencePitch) {
+        this.frameRate = Math.max(1, frameRate);
+        this.interpolationFactor = Math.max(1, interpolationFactor);
+        this.windowSigmaHz = Math.max(MIN_WINDOW_SIGMA_HZ, Math.min(MAX_WINDOW_SIGMA_HZ, windowSigmaHz));
+        this.referencePitch = referencePitch > 0.0 ? referencePitch : 440.0;
+    }
+
+    public AnalysisConfig withFrameRate(int frameRate) {
+        return new AnalysisConfig(frameRate, interpolationFactor, windowSigmaHz, referencePitch);
+    }
+
+    public AnalysisConfig withInterpolationFactor(int interpolationFactor) {
+        return new AnalysisConfig(frameRate, interpolationFactor, windowSigmaHz, referencePitch);
+    }
+
+    public AnalysisConfig withWindowSigmaHz(double windowSigmaHz) {
+        return new AnalysisConfig(frameRate, interpolationFactor, windowSigmaHz, referencePitch);
+    }
+
+    public AnalysisConfig withReferencePitch(double referencePitch) {
+        return new AnalysisConfig(frameRate, interpolationFactor, windowSigmaHz, referencePitch);
+    }
+
+    public int getHop(int sampleRate) {
+        return Math.max(1, sampleRate / frameRate);
+    }
+
+    // true if the native analyser must be reconfigured to go from this to other.
+    public boolean sameWindow(AnalysisConfig other) {
+        return interpolationFactor == other.interpolationFactor && windowSigmaHz == other.windowSigmaHz;
+    }
+
+    // Diatonic note where A4 is 60.
+    public double frequencyToNote(double frequency) {
+        return 12.0 * Math.log(frequency / referencePitch) / Math.log(2.0) + 60.0;
+    }
+
+    public double noteToFrequency(double note) {
+        return referencePitch * Math.pow(2.0, (note - 60.0) / 12.0);
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock free single producer, single consumer queue of analysis results,
+// stored in primitive arrays. AudioThread offer one record per analysed frame,
+// the UI thread drain all the pending ones once per frame. When the UI is too
+// late the queue fill up and offer evict the oldest records, so that the UI
+// always catch up with the latest ones. The producer never wait: while the
+// consumer read the queue, a full queue drop the new record instead.
+public class AnalysisQueue {
+
+    private final int mask;
+
+    private final long[] time; // SystemClock.elapsedRealtime() at the end of the frame
+    private final float[] frequency;
+    private final float[] note;
+    private final long[] offered; // System.nanoTime of offer
+    private final float[] energy;
+    private final float[] confidence;
+
+    private final AtomicLong head = new AtomicLong(); // next record written, producer only
+    private final AtomicLong tail = new AtomicLong(); // next record read, moved by offer only while not reading
+    private final AtomicBoolean reading = new AtomicBoolean(); // between acquire and release
+    private volatile long dropped; // producer only
+
+    // Set by park, cleared by the offer that run listener.
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private volatile Runnable listener;
+
+    // capacity is rounded up to a power of two.
+    public AnalysisQueue(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = n - 1;
+        time = new long[n];
+        frequency = new float[n];
+        note = new float[n];
+        offered = new long[n];
+        energy = new float[n];
+        confidence = new float[n];
+    }
+
+    // Run by the offer that follow a park, on the producer thread.
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // Producer side, return false when the record is dropped.
+    public boolean offer(long t, float f, float d, float e, float c) {
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            if (!reading.compareAndSet(false, true)) {
+                dropped = dropped + 1;
+                PipelineMetrics.count(PipelineMetrics.DROPPED, 1);
+                return false;
+            }
+            // the consumer may have released records since.
+            long oldest = tail.get();
+            boolean full = h - oldest > mask;
+            if (full)
+                tail.lazySet(oldest + 1);
+            reading.set(false);
+            if (full) {
+                dropped = dropped + 1;
+                PipelineMetrics.count(PipelineMetrics.DROPPED, 1);
+            }
+        }
+
+        int i = (int) h & mask;
+        time[i] = t;
+        frequency[i] = f;
+        note[i] = d;
+        offered[i] = System.nanoTime();
+        energy[i] = e;
+        confidence[i] = c;
+        // a full store, park read head after it set parked.
+        head.set(h + 1);
+
+        if (parked.get() && parked.compareAndSet(true, false)) {
+            Runnable l = listener;
+            if (l != null)
+                l.run();
+        }
+        return true;
+    }
+
+    // Consumer side, hold the pending records against eviction and return
+    // their count. They are readable with the get* methods, from the oldest at
+    // 0, until release, which must follow every acquire.
+    public int acquire() {
+        // offer only hold reading for a couple of stores.
+        while (!reading.compareAndSet(false, true))
+            Thread.yield();
+        return (int) (head.get() - tail.get());
+    }
+
+    private int index(int k) {
+        return (int) (tail.get() + k) & mask;
+    }
+
+    public long getTime(int k) {
+        return time[index(k)];
+    }
+
+    public float getFrequency(int k) {
+        return frequency[index(k)];
+    }
+
+    // Diatonic note of the frequency, see AnalysisConfig.frequencyToNote.
+    public float getNote(int k) {
+        return note[index(k)];
+    }
+
+    public long getOfferTime(int k) {
+        return offered[index(k)];
+    }
+
+    public float getEnergy(int k) {
+        return energy[index(k)];
+    }
+
+    public float getConfidence(int k) {
+        return confidence[index(k)];
+    }
+
+    // Consumer side, give back the count oldest records to the producer.
+    public void release(int count) {
+        tail.lazySet(tail.get() + count);
+        reading.set(false);
+    }
+
+    // Consumer side, when acquire found nothing: the next offer run the
+    // listener. Return false if a record came in meanwhile, the consumer
+    // should not wait for the listener then.
+    public boolean park() {
+        parked.set(true);
+        return !(head.get() != tail.get() && parked.compareAndSet(true, false));
+    }
+
+    // Number of records evicted or dropped since the creation of the queue.
+    public long getDropped() {
+        return dropped;
+    }
+
+}
@@ -21,52 +21,105 @@ along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
 
 package com.github.gschwind.fiddle_assistant;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class AudioThread implements Runnable {
-    static int NOTE_SAMPLE_RATE = 30;
+    // Capture the live sources with FixedHopCapture, into a direct ByteBuffer
+    // ring shared with the native side, instead of a compacted short[].
+    static boolean DIRECT_CAPTURE = true;
 
-    private long opaqueNativeHandle; // store the pointer
-    private int length_of_sample; // store the pointer
+    private final ToneAnalyzer analyzer = new ToneAnalyzer();
+    private int length_of_sample;
 
     private int next_analisys_freq_counter;
     private int rate;
 
-    private MainActivityHandler handler;
+    // Latest configuration published by setConfig, and the one the loops run
+    // with. The loops pick up a new one between two frames.
+    private final AtomicReference<AnalysisConfig> pending_config;
+    private AnalysisConfig config;
 
-    // Used to load the 'native-lib' library on application startup.
-    static {
-        System.loadLibrary("native-lib");
-    }
+    // Window last built by analyzer, guarded by analyzer.
+    private AnalysisConfig analyzer_config;
+
+    private final AnalysisQueue queue; // null in batch mode
+    private final SampleSource source;
+    private PitchTrackWriter track;
+    private long samples_read;
+    private volatile FixedHopCapture capture;
+
+    // Capture and analysis in the native audio callback instead of source,
+    // null to capture from Java.
+    private final NativeCapture native_capture;
+    // true while native_capture run, false once it fell back to source.
+    private boolean native_active;
+    private volatile long native_latency = -1;
+    private volatile long native_mean_latency = -1;
+
+    // Frames copied per NativeCapture.poll.
+    private static final int POLL_FRAMES = 16;
+
+    // The native stage histograms are moved to PipelineMetrics every
+    // METRICS_PERIOD frames.
+    private static final int METRICS_PERIOD = 32;
+    private final long[] native_metrics = new long[PipelineMetrics.HISTOGRAM_SIZE];
+    private long published;
+    private long native_dropped;
+
+    private final float[] analysis = new float[ToneAnalyzer.ANALYZE_RESULT_SIZE];
 
     private static final String LOG_TAG = "AudioThread";
 
-    private AudioRecord audioRecord;
     private volatile boolean isAudioRecording;
 
-    public AudioThread(MainActivityHandler handler) {
-        this.handler = handler;
-        this.opaqueNativeHandle = 0;
+    public AudioThread(AnalysisQueue queue) {
+        this(queue, new MicSampleSource());
+    }
 
+    public AudioThread(AnalysisQueue queue, SampleSource source) {
+        this(queue, source, AnalysisConfig.DEFAULT);
     }
 
-    private static Pair<Integer, Integer> getValidSampleRates() {
-        int[] rates = new int[] {48000, 44100, 22050, 16000, 11025, 8000};
+    public AudioThread(AnalysisQueue queue, SampleSource source, AnalysisConfig config) {
+        this(queue, source, null, config);
+    }
 
-        for (int rate : rates) {  // add the rates you wish to check against
-            int bufferSize = AudioRecord.getMinBufferSize(rate, AudioFormat.CHANNEL_IN_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT);
-            if (bufferSize > 0) {
-                return new Pair<Integer, Integer>(rate, bufferSize);
-            }
-        }
+    // source is used if nativeCapture cannot start, nativeCapture is disposed
+    // by the thread.
+    public AudioThread(AnalysisQueue queue, SampleSource source, NativeCapture nativeCapture, AnalysisConfig config) {
+        this.queue = queue;
+        this.source = source;
+        this.native_capture = nativeCapture;
+        this.pending_config = new AtomicReference<>(config);
+    }
 
-        return new Pair<Integer, Integer>(-1, -1);
+    // Run the whole source through the analysis as fast as it can be read,
+    // and write one line per frame into track. Return the number of frames.
+    // It runs on the device, bench/pitch_regression measure the throughput of
+    // the engine on a host.
+    public static long analyzeFile(SampleSource source, File track) throws IOException {
+        AudioThread thread = new AudioThread(null, source);
+        thread.track = new PitchTrackWriter(track);
+        long frames = 0;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            frames = thread.runBatch();
+        } finally {
+            thread.track.close();
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        if (source.getSampleRate() > 0) {
+            Log.i(LOG_TAG, String.format("batch: %d frames, %.1f s of audio in %d ms (%.0fx real time)",
+                    frames, (double) thread.samples_read / source.getSampleRate(), elapsed,
+                    thread.samples_read * 1000.0 / source.getSampleRate() / elapsed));
+        }
+        return frames;
     }
 
     public void stop() {
@@ -76,132 +129,320 @@ public class AudioThread implements Runnable {
 
     @Override
     public void run() {
+        if (native_capture != null) {
+            try {
+                if (runNative() >= 0)
+                    return;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "native capture failed:"+e.getMessage());
+                return;
+            }
+            Log.w(LOG_TAG, "native capture unavailable, fallback to the Java capture");
+        }
 
-        int bufferLength = 0;
-        int bufferSize;
-        short[] audioData;
-        int bufferReadResult;
-
-        {
-            Pair<Integer, Integer> r = getValidSampleRates();
-            rate = r.first;
-            bufferSize = r.second; // scale to shorts
+        if (source.isRealTime()) {
+            try {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            } catch (SecurityException | IllegalArgumentException e) {
+                Log.w(LOG_TAG, "cannot raise the thread priority: " + e.getMessage());
+            }
+        }
+        try {
+            runBatch();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "get audio data failed:"+e.getMessage());
         }
+    }
+
+    private long runBatch() throws IOException {
+
+        rate = source.getSampleRate();
 
         if (rate < 0) {
             // TODO: print error message.
-            return;
+            return 0;
         }
 
-        int err = initSampleRate(rate);
+        int err;
+        synchronized (analyzer) {
+            config = pending_config.get();
+            err = analyzer.initSampleRate(rate, config);
+            analyzer_config = config;
+        }
+        length_of_sample = analyzer.getSampleLength();
         if(err < 0) {
             Log.e(LOG_TAG, "failled to initSampleRate");
-            return;
+            return 0;
         }
 
+        long frames = 0;
+
         try {
-            // store 2 seconds of record to avoid much move/copy buffer.
-            int buff_size_in_shorts = rate*2;
-            int buf_offset = 0;
+            source.start();
+            Log.d(LOG_TAG, "source.start()");
 
-            /* set audio recorder parameters, and start recording */
-            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, rate,
-                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            isAudioRecording = true;
 
-            audioData = new short[buff_size_in_shorts];
+            next_analisys_freq_counter = config.getHop(rate); //at less wait for this amount of data before next analisys
 
-            audioRecord.startRecording();
-            Log.d(LOG_TAG, "audioRecord.startRecording()");
+            // Batch mode keep to the compacted short[] and analyze.
+            if (DIRECT_CAPTURE && source.isRealTime()) {
+                frames = captureFixedHop();
+            } else {
+                frames = captureIntoArray();
+            }
 
-            isAudioRecording = true;
+            Log.d(LOG_TAG, "Stopping source");
+
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "get audio data failed:"+e.getMessage()+e.getCause()+e.toString());
+        } finally {
+            /* encoding finish, release recorder */
+            source.release();
+
+            drainNativeMetrics();
+
+            // clear allocated C++ stuff
+            analyzer.dispose();
+        }
+
+        return frames;
+    }
+
+    // The Java thread only poll the results, every half hop. Return -1 if the
+    // native capture cannot start.
+    private long runNative() throws IOException {
+        config = pending_config.get();
+        rate = native_capture.start(source.getSampleRate(), config);
+        if (rate <= 0) {
+            native_capture.dispose();
+            return -1;
+        }
+        native_active = true;
+        Log.d(LOG_TAG, "native capture started at " + rate + " Hz");
 
-            next_analisys_freq_counter = rate/NOTE_SAMPLE_RATE; //at less wait for this amount of data before next analisys
+        isAudioRecording = true;
+        next_analisys_freq_counter = config.getHop(rate);
 
-            int next_analisys = length_of_sample;
+        long[] times = new long[2*POLL_FRAMES];
+        float[] results = new float[POLL_FRAMES*ToneAnalyzer.ANALYZE_RESULT_SIZE];
+        long frames = 0;
 
-            /* ffmpeg_audio encoding loop */
+        try {
             while (isAudioRecording) {
+                Thread.sleep(Math.max(1, next_analisys_freq_counter * 500L / rate));
+                applyConfig();
 
-                // Read all remining data to flush buffer if the computation is too slow.
+                int count;
                 do {
-
-                    if ((buf_offset + 8192) >= audioData.length) {
-                        System.arraycopy(audioData, buf_offset-length_of_sample, audioData, 0, length_of_sample);
-                        buf_offset = length_of_sample;
+                    count = native_capture.poll(times, results);
+                    // capture times are System.nanoTime, the queue use elapsedRealtime.
+                    long offset = SystemClock.elapsedRealtime() - System.nanoTime() / 1000000L;
+                    for (int i = 0; i < count; ++i) {
+                        System.arraycopy(results, i*analysis.length, analysis, 0, analysis.length);
+                        long latency = times[2*i+1] - times[2*i];
+                        native_latency = latency;
+                        native_mean_latency = native_mean_latency < 0 ? latency
+                                : native_mean_latency + (latency - native_mean_latency)/16;
+                        publishAnalysis(times[2*i] / 1000000L + offset);
                     }
+                    frames += count;
+                } while (count == POLL_FRAMES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            native_capture.stop();
+            drainNativeMetrics();
+            if (native_capture.getDropped() > 0)
+                Log.w(LOG_TAG, "native capture dropped " + native_capture.getDropped() + " frames");
+            native_active = false;
+            native_capture.dispose();
+        }
 
-                    bufferReadResult = audioRecord.read(audioData, buf_offset, 8192, AudioRecord.READ_NON_BLOCKING);
+        return frames;
+    }
 
-                    if (bufferReadResult < 0 ) {
-                        System.out.printf("AudioThreadError %d%n", bufferReadResult);
-                        return;
-                    }
+    private void publishAnalysis() throws IOException {
+        publishAnalysis(SystemClock.elapsedRealtime());
+    }
 
-                    buf_offset += bufferReadResult;
-                    next_analisys -= bufferReadResult;
+    // Called from the analysis thread only, while the native objects are alive.
+    private void drainNativeMetrics() {
+        if (native_active) {
+            native_capture.drainMetrics(native_metrics);
+            PipelineMetrics.add(native_metrics);
+            long dropped = native_capture.getDropped();
+            PipelineMetrics.count(PipelineMetrics.NATIVE_DROPPED, dropped - native_dropped);
+            native_dropped = dropped;
+        }
+        analyzer.drainMetrics(native_metrics);
+        PipelineMetrics.add(native_metrics);
+    }
 
-                } while (bufferReadResult > 0);
+    private void publishAnalysis(long time) throws IOException {
+        if (++published % METRICS_PERIOD == 0)
+            drainNativeMetrics();
+        if (track != null)
+            track.write((double) samples_read / rate, analysis);
+        if (queue == null)
+            return;
+        float frequency = analysis[ToneAnalyzer.ANALYZE_FREQUENCY];
+        queue.offer(time,
+                frequency,
+                (float) config.frequencyToNote(frequency),
+                analysis[ToneAnalyzer.ANALYZE_ENERGY],
+                analysis[ToneAnalyzer.ANALYZE_CONFIDENCE]);
+    }
 
-                if (next_analisys > 0) {
+    private long captureIntoArray() throws IOException {
+        short[] audioData;
+        int bufferReadResult;
 
-                    if ((buf_offset + next_analisys) >= audioData.length) {
-                        System.arraycopy(audioData, buf_offset - length_of_sample, audioData, 0, length_of_sample);
-                        buf_offset = length_of_sample;
-                    }
+        // store 2 seconds of record to avoid much move/copy buffer.
+        int buff_size_in_shorts = rate*2;
+        int buf_offset = 0;
 
-                    bufferReadResult = audioRecord.read(audioData, buf_offset, next_analisys);
+        audioData = new short[buff_size_in_shorts];
 
-                    if (bufferReadResult < 0) {
-                        System.out.printf("AudioThreadError %d%n", bufferReadResult);
-                        return;
-                    }
+        int next_analisys = length_of_sample;
+        long frames = 0;
 
-                    buf_offset += bufferReadResult;
-                    next_analisys -= bufferReadResult;
+        /* ffmpeg_audio encoding loop */
+        while (isAudioRecording) {
 
+            // Read all remining data to flush buffer if the computation is too slow.
+            do {
+
+                if ((buf_offset + 8192) >= audioData.length) {
+                    System.arraycopy(audioData, buf_offset-length_of_sample, audioData, 0, length_of_sample);
+                    buf_offset = length_of_sample;
+                    PipelineMetrics.count(PipelineMetrics.COMPACTIONS, 1);
                 }
 
-                if (next_analisys <= 0) {
-                    double freq = computeFreq(audioData, buf_offset - length_of_sample, length_of_sample);
-                    double energy = sampleEnergy(audioData, buf_offset - length_of_sample, length_of_sample);
-                    handler.sendMessage(Message.obtain(handler, 2, new Pair<>(new Double(freq), new Double(energy))));
-                    next_analisys = next_analisys_freq_counter;
+                bufferReadResult = source.read(audioData, buf_offset, 8192, false);
+
+                if (bufferReadResult < 0 ) {
+                    System.out.printf("AudioThreadError %d%n", bufferReadResult);
+                    return frames;
                 }
 
-            }
+                buf_offset += bufferReadResult;
+                samples_read += bufferReadResult;
+                next_analisys -= bufferReadResult;
 
-            Log.d(LOG_TAG, "Stopping audioRecord");
+            } while (bufferReadResult > 0);
 
-            /* encoding finish, release recorder */
-            if (audioRecord != null) {
-                try {
-                    audioRecord.stop();
-                    audioRecord.release();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            if (next_analisys > 0) {
+
+                if ((buf_offset + next_analisys) >= audioData.length) {
+                    System.arraycopy(audioData, buf_offset - length_of_sample, audioData, 0, length_of_sample);
+                    buf_offset = length_of_sample;
+                    PipelineMetrics.count(PipelineMetrics.COMPACTIONS, 1);
+                }
+
+                long wait_start = System.nanoTime();
+                bufferReadResult = source.read(audioData, buf_offset, next_analisys, true);
+                PipelineMetrics.record(PipelineMetrics.CAPTURE_WAIT, System.nanoTime() - wait_start);
+
+                if (bufferReadResult < 0) {
+                    System.out.printf("AudioThreadError %d%n", bufferReadResult);
+                    return frames;
                 }
 
-                audioRecord = null;
+                if (bufferReadResult == 0) // end of stream
+                    return frames;
+
+                buf_offset += bufferReadResult;
+                samples_read += bufferReadResult;
+                next_analisys -= bufferReadResult;
+
             }
 
-            // clear allocated C++ stuff
-            dispose();
+            if (next_analisys <= 0) {
+                analyzer.analyze(audioData, buf_offset - length_of_sample, length_of_sample, analysis);
+                publishAnalysis();
+                ++frames;
+                applyConfig();
+                // a longer window need enough samples behind buf_offset.
+                next_analisys = Math.max(next_analisys_freq_counter, length_of_sample - buf_offset);
+            }
 
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "get audio data failed:"+e.getMessage()+e.getCause()+e.toString());
         }
 
+        return frames;
+    }
+
+    // Fixed hop capture of the live sources, the ring hold about 2 seconds
+    // of record and the native side handle the wrap around.
+    private long captureFixedHop() throws IOException {
+        capture = new FixedHopCapture(source, analyzer, rate*2);
+        return capture.run(length_of_sample, analysis, new FixedHopCapture.Client() {
+            @Override
+            public int onFrame() throws IOException {
+                publishAnalysis();
+                applyConfig();
+                return isAudioRecording ? next_analisys_freq_counter : 0;
+            }
+        });
+    }
+
+    // Capture to result delay in ns of the last frame, and averaged over the
+    // last frames, negative before the first frame or without DIRECT_CAPTURE.
+    public long getLatency() {
+        FixedHopCapture c = capture;
+        return c == null ? native_latency : c.getLatency();
     }
 
-    public void updateSampleFrequency(int f) {
-        NOTE_SAMPLE_RATE = f;
-        next_analisys_freq_counter = rate / NOTE_SAMPLE_RATE;
+    public long getMeanLatency() {
+        FixedHopCapture c = capture;
+        return c == null ? native_mean_latency : c.getMeanLatency();
     }
 
-    public native int initSampleRate(int sampleRate);
-    public native float computeFreq(short[] arr, int offset, int length);
-    public native float sampleEnergy(short[] arr, int offset, int length);
-    public native void dispose();
+    // Can be called from any thread, the new configuration apply from the
+    // next analysed frame on, without restarting the capture. A new window of
+    // the Java capture is built here, the analysis thread only swap it in.
+    public void setConfig(AnalysisConfig config) {
+        synchronized (analyzer) {
+            if (analyzer.getSampleRate() > 0 && !config.sameWindow(analyzer_config)) {
+                if (analyzer.prepare(config) < 0) {
+                    Log.e(LOG_TAG, "failled to prepare the analysis window");
+                    config = config.withInterpolationFactor(analyzer_config.interpolationFactor)
+                            .withWindowSigmaHz(analyzer_config.windowSigmaHz);
+                } else {
+                    analyzer_config = config;
+                }
+            }
+            pending_config.set(config);
+        }
+    }
+
+    private void applyConfig() {
+        // the window prepared by setConfig may be swapped a frame after the
+        // rest of its configuration.
+        if (!native_active)
+            length_of_sample = analyzer.swapPending();
 
+        AnalysisConfig next = pending_config.get();
+        if (next == config)
+            return;
+
+        if (native_active && !next.sameWindow(config)) {
+            int err = native_capture.configure(next);
+            if (err < 0) {
+                // keep the current window, and do not retry it every frame.
+                Log.e(LOG_TAG, "failled to configure the analysis window");
+                AnalysisConfig rejected = next;
+                next = rejected.withInterpolationFactor(config.interpolationFactor)
+                        .withWindowSigmaHz(config.windowSigmaHz);
+                pending_config.compareAndSet(rejected, next);
+            }
+        }
+
+        config = next;
+        next_analisys_freq_counter = config.getHop(rate);
+        if (native_active)
+            native_capture.setHop(next_analisys_freq_counter);
+    }
 
 }
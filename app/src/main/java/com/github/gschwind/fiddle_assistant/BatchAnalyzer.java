@@ -0,0 +1,237 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Analyse many WAV or raw PCM files on a pool of worker threads. Files are cut
+// into chunks of frames, each chunk read the window that precede its first
+// frame, thus the tracks are the same as a sequential analysis. Each worker
+// own its ToneAnalyzer, the native side keep per instance state.
+public class BatchAnalyzer {
+
+    // Analysed frames of one file, frame i end at sample
+    // sampleLength + i*hop.
+    public static class Track {
+        public final File file;
+        public final int rate;
+        public final int hop;
+        public final int sampleLength;
+        public final float[] frames; // frameCount*ANALYZE_RESULT_SIZE
+
+        Track(File file, int rate, int hop, int sampleLength, float[] frames) {
+            this.file = file;
+            this.rate = rate;
+            this.hop = hop;
+            this.sampleLength = sampleLength;
+            this.frames = frames;
+        }
+
+        public int getFrameCount() {
+            return frames.length / ToneAnalyzer.ANALYZE_RESULT_SIZE;
+        }
+
+        // Time in seconds of the end of the window of frame i.
+        public double getTime(int i) {
+            return (sampleLength + (double) i * hop) / rate;
+        }
+
+        public void writeTo(File output) throws IOException {
+            PitchTrackWriter writer = new PitchTrackWriter(output);
+            float[] analysis = new float[ToneAnalyzer.ANALYZE_RESULT_SIZE];
+            try {
+                for (int i = 0; i < getFrameCount(); ++i) {
+                    System.arraycopy(frames, i * analysis.length, analysis, 0, analysis.length);
+                    writer.write(getTime(i), analysis);
+                }
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    // Raw files are read at this rate.
+    private static final int RAW_SAMPLE_RATE = 44100;
+
+    private final int threadCount;
+    private final AnalysisConfig config;
+    private final int chunkFrames;
+
+    private final List<ToneAnalyzer> analyzers = new ArrayList<>();
+    private final ThreadLocal<ToneAnalyzer> workerAnalyzer = new ThreadLocal<ToneAnalyzer>() {
+        @Override
+        protected ToneAnalyzer initialValue() {
+            ToneAnalyzer analyzer = new ToneAnalyzer();
+            synchronized (analyzers) {
+                analyzers.add(analyzer);
+            }
+            return analyzer;
+        }
+    };
+
+    // Analyse with the frame rate and window of config, chunkFrames frames per
+    // task.
+    public BatchAnalyzer(int threadCount, AnalysisConfig config, int chunkFrames) {
+        this.threadCount = threadCount;
+        this.config = config;
+        this.chunkFrames = chunkFrames;
+    }
+
+    public BatchAnalyzer() {
+        this(Runtime.getRuntime().availableProcessors(), AnalysisConfig.DEFAULT, 1024);
+    }
+
+    private static FileSampleSource open(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".wav"))
+            return new FileSampleSource(file);
+        return new FileSampleSource(file, RAW_SAMPLE_RATE);
+    }
+
+    // Return the tracks in the order of files.
+    public List<Track> analyze(List<File> files) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchAnalyzer-" + count++);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+        try {
+            List<List<Future<float[]>>> chunks = new ArrayList<>();
+            List<Track> tracks = new ArrayList<>();
+
+            // Window length depend only on the rate, probe it once per file
+            // on this thread.
+            ToneAnalyzer probe = new ToneAnalyzer();
+            try {
+                for (File file : files) {
+                    FileSampleSource source = open(file);
+                    int rate = source.getSampleRate();
+                    if (probe.initSampleRate(rate, config) < 0)
+                        throw new IOException("unsupported sample rate " + rate + ": " + file);
+                    int sampleLength = probe.getSampleLength();
+                    int hop = config.getHop(rate);
+                    long length = source.getLength();
+                    int frameCount = length < sampleLength ? 0 : (int) ((length - sampleLength) / hop + 1);
+
+                    List<Future<float[]>> fileChunks = new ArrayList<>();
+                    for (int first = 0; first < frameCount; first += chunkFrames) {
+                        fileChunks.add(pool.submit(new ChunkTask(file, sampleLength, hop,
+                                first, Math.min(chunkFrames, frameCount - first))));
+                    }
+                    chunks.add(fileChunks);
+                    tracks.add(new Track(file, rate, hop, sampleLength, new float[frameCount * ToneAnalyzer.ANALYZE_RESULT_SIZE]));
+                }
+            } finally {
+                probe.dispose();
+            }
+
+            for (int i = 0; i < tracks.size(); ++i) {
+                float[] frames = tracks.get(i).frames;
+                int offset = 0;
+                for (Future<float[]> chunk : chunks.get(i)) {
+                    float[] result = chunk.get();
+                    System.arraycopy(result, 0, frames, offset, result.length);
+                    offset += result.length;
+                }
+            }
+
+            return tracks;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            synchronized (analyzers) {
+                for (ToneAnalyzer analyzer : analyzers)
+                    analyzer.dispose();
+                analyzers.clear();
+            }
+        }
+    }
+
+    private class ChunkTask implements Callable<float[]> {
+        private final File file;
+        private final int sampleLength;
+        private final int hop;
+        private final int first;
+        private final int count;
+
+        ChunkTask(File file, int sampleLength, int hop, int first, int count) {
+            this.file = file;
+            this.sampleLength = sampleLength;
+            this.hop = hop;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        public float[] call() throws IOException {
+            FileSampleSource source = open(file);
+            ToneAnalyzer analyzer = workerAnalyzer.get();
+            if (analyzer.getSampleRate() != source.getSampleRate()
+                    && analyzer.initSampleRate(source.getSampleRate(), config) < 0)
+                throw new IOException("unsupported sample rate " + source.getSampleRate() + ": " + file);
+
+            // The chunk overlap the previous one by the window minus one hop.
+            int length = sampleLength + (count - 1) * hop;
+            short[] samples = new short[length];
+            try {
+                source.start();
+                source.skip((long) first * hop);
+                int done = 0;
+                while (done < length) {
+                    int r = source.read(samples, done, length - done, true);
+                    if (r <= 0)
+                        throw new IOException("truncated file: " + file);
+                    done += r;
+                }
+            } finally {
+                source.release();
+            }
+
+            float[] result = new float[count * ToneAnalyzer.ANALYZE_RESULT_SIZE];
+            float[] analysis = new float[ToneAnalyzer.ANALYZE_RESULT_SIZE];
+            for (int i = 0; i < count; ++i) {
+                analyzer.analyze(samples, i * hop, sampleLength, analysis);
+                System.arraycopy(analysis, 0, result, i * analysis.length, analysis.length);
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+// 16 bits PCM from a WAV file, or from a raw little endian file at a given
+// rate. Multi-channel files are mixed down to mono. The samples are read
+// faster than real time.
+public class FileSampleSource implements SampleSource {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final File file;
+    private int rate;
+    private int channels;
+    private long remainingBytes;
+    private long dataBytes;
+
+    private DataInputStream input;
+    private byte[] frameBuffer = new byte[0];
+    private short[] scratch = new short[0];
+
+    // Raw little endian mono 16 bits PCM at rate.
+    public FileSampleSource(File file, int rate) {
+        this.file = file;
+        this.rate = rate;
+        this.channels = 1;
+        this.remainingBytes = -1;
+    }
+
+    // WAV file, the rate is read from the header.
+    public FileSampleSource(File file) throws IOException {
+        this.file = file;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            readWavHeader(in);
+        }
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShortLE(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0)
+                throw new EOFException();
+            n -= s;
+        }
+    }
+
+    // Parse the header up to the start of the data chunk.
+    private void readWavHeader(DataInputStream in) throws IOException {
+        if (readIntLE(in) != 0x46464952 /* RIFF */)
+            throw new IOException("not a RIFF file: " + file);
+        readIntLE(in);
+        if (readIntLE(in) != 0x45564157 /* WAVE */)
+            throw new IOException("not a WAVE file: " + file);
+
+        boolean hasFormat = false;
+        while (true) {
+            int id = readIntLE(in);
+            long size = readIntLE(in) & 0xffffffffL;
+            if (id == 0x20746d66 /* fmt  */) {
+                int format = readShortLE(in);
+                channels = readShortLE(in);
+                rate = readIntLE(in);
+                readIntLE(in); // byte rate
+                readShortLE(in); // block align
+                int bits = readShortLE(in);
+                if ((format != WAVE_FORMAT_PCM && format != WAVE_FORMAT_EXTENSIBLE) || bits != 16 || channels < 1)
+                    throw new IOException("only 16 bits PCM is supported: " + file);
+                skipFully(in, size - 16 + (size & 1));
+                hasFormat = true;
+            } else if (id == 0x61746164 /* data */) {
+                if (!hasFormat)
+                    throw new IOException("data before format: " + file);
+                remainingBytes = size;
+                dataBytes = size;
+                return;
+            } else {
+                skipFully(in, size + (size & 1));
+            }
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return rate;
+    }
+
+    // Length of the stream in samples.
+    public long getLength() {
+        long bytes = remainingBytes >= 0 ? dataBytes : file.length();
+        return bytes / (2 * channels);
+    }
+
+    // Skip count samples, only valid after start.
+    public void skip(long count) throws IOException {
+        long bytes = count * 2 * channels;
+        if (remainingBytes >= 0) {
+            bytes = Math.min(bytes, remainingBytes);
+            remainingBytes -= bytes;
+        }
+        skipFully(input, bytes);
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return false;
+    }
+
+    @Override
+    public void start() throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        if (remainingBytes >= 0) {
+            readWavHeader(input);
+        }
+    }
+
+    @Override
+    public int read(short[] data, int offset, int length, boolean blocking) {
+        if (!blocking)
+            return 0;
+
+        int frameSize = 2 * channels;
+        long available = length * (long) frameSize;
+        if (remainingBytes >= 0)
+            available = Math.min(available, remainingBytes - remainingBytes % frameSize);
+        if (frameBuffer.length < available)
+            frameBuffer = new byte[(int) available];
+
+        int n = 0;
+        try {
+            while (n < available) {
+                int r = input.read(frameBuffer, n, (int) available - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+
+        int frames = n / frameSize;
+        if (remainingBytes >= 0)
+            remainingBytes -= frames * frameSize;
+
+        for (int i = 0; i < frames; ++i) {
+            int sum = 0;
+            for (int c = 0; c < channels; ++c) {
+                int p = i * frameSize + 2 * c;
+                sum += (short) ((frameBuffer[p] & 0xff) | (frameBuffer[p + 1] << 8));
+            }
+            data[offset + i] = (short) (sum / channels);
+        }
+
+        return frames;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        if (scratch.length < sizeInBytes / 2)
+            scratch = new short[sizeInBytes / 2];
+        return readIntoBuffer(this, buffer, sizeInBytes, scratch);
+    }
+
+    // Fill the start of buffer through the short[] read of source.
+    static int readIntoBuffer(SampleSource source, ByteBuffer buffer, int sizeInBytes, short[] scratch) {
+        int n = source.read(scratch, 0, sizeInBytes / 2, true);
+        if (n > 0) {
+            ByteBuffer b = buffer.duplicate();
+            b.order(ByteOrder.nativeOrder());
+            b.position(0);
+            ShortBuffer out = b.asShortBuffer();
+            out.put(scratch, 0, n);
+        }
+        return n < 0 ? n : n * 2;
+    }
+
+    @Override
+    public long getCaptureTime(long position) {
+        return -1;
+    }
+
+    @Override
+    public void release() {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            input = null;
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Capture loop of the live sources, free of any android dependency. Every
+// frame read exactly hop samples with blocking reads into a direct ring
+// shared with the native side, then analyse the window ending at the last of
+// them. Frames are thus evenly spaced whatever the read sizes of the source.
+public class FixedHopCapture {
+
+    public interface Client {
+        // Called after each analysed frame, return the hop in samples to the
+        // next frame, 0 to stop.
+        int onFrame() throws IOException;
+    }
+
+    // The native side of the ring, implemented by ToneAnalyzer.
+    public interface Analyzer {
+        int registerCaptureBuffer(ByteBuffer buffer, int capacity);
+        void analyzeCapture(int end, float[] out);
+    }
+
+    private final SampleSource source;
+    private final Analyzer analyzer;
+    private final ByteBuffer ring;
+    private final int capacity;
+
+    // Ring position following the last read sample.
+    private int end;
+    private long samples_read;
+
+    // Delay in ns from the capture of the last sample of a frame to the end of
+    // its analysis, of the last frame and averaged over about 16 frames.
+    private volatile long latency = -1;
+    private volatile long mean_latency = -1;
+
+    public FixedHopCapture(SampleSource source, Analyzer analyzer, int capacity) {
+        this.source = source;
+        this.analyzer = analyzer;
+        this.capacity = capacity;
+        ring = ByteBuffer.allocateDirect(capacity*2).order(ByteOrder.nativeOrder());
+    }
+
+    public long getSamplesRead() {
+        return samples_read;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public long getMeanLatency() {
+        return mean_latency;
+    }
+
+    // Blocking read of count samples at the ring end, split where the ring wrap.
+    // Return the number of samples read, less than count at the end of the
+    // stream.
+    private int readFully(int count) throws IOException {
+        int done = 0;
+        while (done < count) {
+            int n = Math.min(count - done, capacity - end);
+            // sources always write at the start of the buffer.
+            ByteBuffer target = ring.duplicate();
+            target.position(end*2);
+            target = target.slice();
+
+            int r = source.read(target, n*2);
+            if (r < 0)
+                throw new IOException("capture read failed: " + r);
+            if (r == 0)
+                break;
+
+            r /= 2;
+            end = (end + r) % capacity;
+            done += r;
+        }
+        samples_read += done;
+        return done;
+    }
+
+    // Analyse a first frame after first samples into analysis, then after
+    // every hop returned by client. Return the number of analysed frames.
+    public long run(int first, float[] analysis, Client client) throws IOException {
+        if (analyzer.registerCaptureBuffer(ring, capacity) < 0)
+            throw new IOException("failled to registerCaptureBuffer");
+
+        long frames = 0;
+        int hop = first;
+        while (hop > 0) {
+            long wait_start = System.nanoTime();
+            if (readFully(Math.min(hop, capacity)) < Math.min(hop, capacity))
+                break;
+
+            long read_time = System.nanoTime();
+            PipelineMetrics.record(PipelineMetrics.CAPTURE_WAIT, read_time - wait_start);
+            analyzer.analyzeCapture(end, analysis);
+
+            // Sources that cannot tell the capture time are measured from the
+            // end of the read.
+            long captured = source.getCaptureTime(samples_read - 1);
+            long now = System.nanoTime();
+            if (captured < 0 || captured > read_time)
+                captured = read_time;
+            latency = now - captured;
+            mean_latency = mean_latency < 0 ? latency : mean_latency + (latency - mean_latency)/16;
+
+            ++frames;
+            hop = client.onFrame();
+        }
+        return frames;
+    }
+
+}
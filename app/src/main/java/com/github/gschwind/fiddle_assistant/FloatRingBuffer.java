@@ -0,0 +1,75 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+// Fixed capacity ring of floats, the oldest value is dropped when a value is
+// added to a full ring. Index 0 is the most recent value.
+public class FloatRingBuffer {
+
+    private float[] values;
+    private int head; // index of the most recent value
+    private int size;
+
+    public FloatRingBuffer(int capacity) {
+        values = new float[Math.max(1, capacity)];
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public void add(float v) {
+        head = head + 1 == values.length ? 0 : head + 1;
+        values[head] = v;
+        if (size < values.length)
+            ++size;
+    }
+
+    // The i-th most recent value, 0 <= i < size().
+    public float get(int i) {
+        int k = head - i;
+        return values[k < 0 ? k + values.length : k];
+    }
+
+    // Change the capacity, keep the most recent values.
+    public void resize(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == values.length)
+            return;
+
+        float[] resized = new float[capacity];
+        int kept = Math.min(size, capacity);
+        // Keep the most recent value at kept-1 and the older ones before.
+        for (int i = 0; i < kept; ++i)
+            resized[kept - 1 - i] = get(i);
+
+        values = resized;
+        size = kept;
+        head = Math.max(0, kept - 1);
+    }
+
+}
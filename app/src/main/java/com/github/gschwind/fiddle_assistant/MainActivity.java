@@ -31,16 +31,25 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
-import android.util.Pair;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.WindowManager;
 import android.widget.TextView;
+import android.widget.Toast;
 
-public class MainActivity extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+public class MainActivity extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener, Choreographer.FrameCallback {
 
     // Requesting permission to RECORD_AUDIO
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 200;
@@ -49,7 +58,32 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
 
     AudioThread audioThread = null;
 
-    MainActivityHandler handler;
+    // Results of audioThread, drained once per frame. A new queue for every
+    // thread, the previous one may still be stopping.
+    AnalysisQueue analysisQueue = null;
+    boolean drainingQueue = false;
+    boolean drainPosted = false;
+
+    // The frame callback stop once the queue is empty, the next offer post it
+    // again through the main looper.
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable postDrain = new Runnable() {
+        @Override
+        public void run() {
+            postDrain();
+        }
+    };
+    private final Runnable wakeDrain = new Runnable() {
+        @Override
+        public void run() {
+            uiHandler.post(postDrain);
+        }
+    };
+
+    SessionLogWriter sessionLog = null;
+    SessionLogReader sessionHistory = null;
+
+    RenderScheduler renderScheduler;
 
     SlidingNotesView slidingNotesView;
     ScaleNotesView scaleNotesView;
@@ -57,16 +91,23 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     TextView freqView;
     TextView energyView;
 
-    float base_frequency;
+    // PipelineMetrics summary, refreshed every DEBUG_OVERLAY_PERIOD ns when
+    // the debug_overlay preference is set.
+    TextView debugOverlay;
+    boolean showDebugOverlay = false;
+    long debugOverlayUpdate = 0;
+    final StringBuilder debugOverlayText = new StringBuilder();
+    static final long DEBUG_OVERLAY_PERIOD = 1000000000L;
 
-    private double frequency_to_diatonic_note(double frequency)
-    {
-        return 12.0 * Math.log(frequency / base_frequency) / Math.log(2.0) + 60.0;
-    }
+    // Published to audioThread on every preference change.
+    AnalysisConfig analysisConfig = AnalysisConfig.DEFAULT;
 
-    private double diatonic_note_to_frequency(double diatonic_note)
-    {
-        return base_frequency * Math.pow(2.0, (diatonic_note - 60.0) / 12.0);
+    private static AnalysisConfig readAnalysisConfig(SharedPreferences sharedPreferences) {
+        float base_frequency = Float.valueOf(sharedPreferences.getString("base_frequency", "440"));
+        if (base_frequency <= 55.0f)
+            base_frequency = 440.0f;
+        int rate = Integer.valueOf(sharedPreferences.getString("sample_frequency", "30"));
+        return AnalysisConfig.DEFAULT.withReferencePitch(base_frequency).withFrameRate(rate);
     }
 
     @Override
@@ -81,37 +122,68 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
         slidingNotesView = findViewById(R.id.slidingNotesView);
         scaleNotesView = findViewById(R.id.scaleNotesView);
 
+        renderScheduler = new RenderScheduler();
+        slidingNotesView.setRenderScheduler(renderScheduler);
+        scaleNotesView.setRenderScheduler(renderScheduler);
+
         freqView = findViewById(R.id.textView1);
         energyView = findViewById(R.id.textView3);
 
-        handler = new MainActivityHandler(Looper.getMainLooper(), this);
-
-        audioThread = new AudioThread(handler);
-
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         sharedPreferences.registerOnSharedPreferenceChangeListener(this);
 
+        analysisConfig = readAnalysisConfig(sharedPreferences);
+
         slidingNotesView.updateNoteNames(sharedPreferences.getString("music_notation", "english"));
         scaleNotesView.updateNoteNames(sharedPreferences.getString("music_notation", "english"));
 
-        base_frequency = Float.valueOf(sharedPreferences.getString("base_frequency", "440"));
-        if (base_frequency <= 55.0f)
-            base_frequency = 440.0f;
-
-        int i = Integer.valueOf(sharedPreferences.getString("sample_frequency", "30"));
-        audioThread.updateSampleFrequency(i);
+        freqView.setText(String.format("%.2f Hz", analysisConfig.referencePitch));
 
-        freqView.setText(String.format("%.2f Hz", base_frequency));
+        debugOverlay = findViewById(R.id.debug_overlay);
+        setDebugOverlay(sharedPreferences.getBoolean("debug_overlay", false));
     }
 
     @Override
     protected void onStart() {
         super.onStart();
         Log.d("MainActivity", "onStart");
+        renderScheduler.start();
         if (!permissionToRecordAccepted) {
             ActivityCompat.requestPermissions(this, permissions, REQUEST_RECORD_AUDIO_PERMISSION);
         } else {
-            new Thread(audioThread, "AudioThread").start();
+            startAudioThread();
+        }
+    }
+
+    private void startAudioThread() {
+        try {
+            sessionLog = new SessionLogWriter(SessionLogWriter.getSessionsDir(getFilesDir()));
+        } catch (IOException e) {
+            Log.e("MainActivity", "cannot open the session log: " + e.getMessage());
+        }
+
+        // A new thread on every start, the native capture is disposed by the
+        // thread when it stops.
+        int audioSource = MicSampleSource.getLowLatencySource(this);
+        NativeCapture nativeCapture = null;
+        if (PreferenceManager.getDefaultSharedPreferences(this).getBoolean("native_capture", false))
+            nativeCapture = new NativeCapture(NativeCapture.getDefaultBackend(), audioSource, 0.0);
+        if (analysisQueue != null)
+            analysisQueue.setListener(null);
+        analysisQueue = new AnalysisQueue(64);
+        analysisQueue.setListener(wakeDrain);
+        audioThread = new AudioThread(analysisQueue, new MicSampleSource(audioSource), nativeCapture, analysisConfig);
+
+        new Thread(audioThread, "AudioThread").start();
+
+        drainingQueue = true;
+        postDrain();
+    }
+
+    private void postDrain() {
+        if (drainingQueue && !drainPosted) {
+            drainPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
         }
     }
 
@@ -119,9 +191,21 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     protected void onStop() {
         super.onStop();
         Log.d("MainActivity", "onStop");
+        renderScheduler.stop();
         if (audioThread != null) {
             audioThread.stop();
         }
+        drainingQueue = false;
+        if (drainPosted) {
+            drainPosted = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        if (analysisQueue != null)
+            analysisQueue.setListener(null);
+        if (sessionLog != null) {
+            sessionLog.close();
+            sessionLog = null;
+        }
     }
 
     @Override
@@ -136,20 +220,91 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
 
 
         // start the audio Thread.
-        new Thread(audioThread, "AudioThread").start();
+        startAudioThread();
+
+    }
 
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        drainPosted = false;
+        boolean drained = updateView();
+        if (showDebugOverlay && frameTimeNanos - debugOverlayUpdate >= DEBUG_OVERLAY_PERIOD) {
+            debugOverlayUpdate = frameTimeNanos;
+            updateDebugOverlay();
+        }
+        // the debug overlay keep refreshing without results.
+        if (drained || showDebugOverlay || !analysisQueue.park())
+            postDrain();
+    }
+
+    private void updateDebugOverlay() {
+        debugOverlayText.setLength(0);
+        AudioThread thread = audioThread;
+        if (thread != null && thread.getMeanLatency() >= 0)
+            debugOverlayText.append(String.format("latency %.1f ms%n", thread.getMeanLatency() / 1e6));
+        PipelineMetrics.summary(debugOverlayText);
+        debugOverlay.setText(debugOverlayText);
     }
 
-    void updateView(Pair<Double,Double> v) {
+    private void setDebugOverlay(boolean show) {
+        showDebugOverlay = show;
+        debugOverlay.setVisibility(show ? View.VISIBLE : View.GONE);
+        debugOverlayUpdate = 0;
+        if (show)
+            postDrain();
+    }
+
+    // Write PipelineMetrics next to the app files, readable over USB.
+    private void exportMetrics() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null)
+            dir = getFilesDir();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, "metrics-" + stamp + ".txt");
+        try {
+            PipelineMetrics.dump(file);
+            Toast.makeText(this, getString(R.string.metrics_exported, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("MainActivity", "cannot export the metrics: " + e.getMessage());
+            Toast.makeText(this, R.string.metrics_export_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Drain the results pending since the previous frame, every one of them
+    // is logged and slide the notes, the text and the scale only show the
+    // latest. Return false when there was none.
+    boolean updateView() {
+        int count = analysisQueue.acquire();
+        if (count == 0) {
+            analysisQueue.release(0);
+            return false;
+        }
+
+        // Only the last result reach the scale and the texts.
+        PipelineMetrics.count(PipelineMetrics.COALESCED, count - 1);
+        long now = System.nanoTime();
+
+        double diatonic_note = Double.NaN;
+        for (int i = 0; i < count; ++i) {
+            diatonic_note = analysisQueue.getNote(i);
+            PipelineMetrics.record(PipelineMetrics.UI_DELIVERY, now - analysisQueue.getOfferTime(i));
+
+            if (sessionLog != null)
+                sessionLog.append(analysisQueue.getTime(i), (float) diatonic_note,
+                        analysisQueue.getEnergy(i), analysisQueue.getConfidence(i));
+
+            slidingNotesView.appendDouble(diatonic_note);
+        }
+
         // Example of a call to a native method
-//        freqView.setText(String.format("%.2f Hz", v.first));
+//        freqView.setText(String.format("%.2f Hz", analysisQueue.getFrequency(count-1)));
 
-        energyView.setText(String.format("%.0f", v.second));
+        energyView.setText(String.format("%.0f", analysisQueue.getEnergy(count-1)));
 
-        double diatonic_note = frequency_to_diatonic_note(v.first);
-        slidingNotesView.appendDouble(diatonic_note);
-        scaleNotesView.updateCurrentNote(diatonic_note);
+        analysisQueue.release(count);
 
+        scaleNotesView.updateCurrentNote(diatonic_note);
+        return true;
     }
 
     @Override
@@ -167,10 +322,43 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
             Intent intent = new Intent(MainActivity.this, SettingsActivity.class);
             startActivity(intent);
             return true;
+        } else if (id == R.id.action_history) {
+            item.setChecked(toggleSessionHistory());
+            return true;
+        } else if (id == R.id.action_export_metrics) {
+            exportMetrics();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    // Show the latest session log in slidingNotesView, or go back to the live
+    // notes. Return true if the history is shown.
+    private boolean toggleSessionHistory() {
+        if (sessionHistory != null) {
+            sessionHistory = null;
+            slidingNotesView.setHistory(null);
+            return false;
+        }
+
+        File file = SessionLogReader.findLatest(SessionLogWriter.getSessionsDir(getFilesDir()));
+        if (file != null) {
+            try {
+                sessionHistory = new SessionLogReader(file);
+            } catch (IOException e) {
+                Log.e("MainActivity", "cannot read the session log: " + e.getMessage());
+            }
+        }
+
+        if (sessionHistory == null) {
+            Toast.makeText(this, R.string.no_session_log, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        slidingNotesView.setHistory(sessionHistory);
+        return true;
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         Log.d("MainActivity", String.format("Changed key: %s", key));
@@ -179,15 +367,13 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
             String v = sharedPreferences.getString("music_notation", "english");
             slidingNotesView.updateNoteNames(v);
             scaleNotesView.updateNoteNames(v);
-        } else if (key.equals("base_frequency")) {
-            base_frequency = Float.valueOf(sharedPreferences.getString("base_frequency", "440"));
-            if (base_frequency <= 55.0f)
-                base_frequency = 440.0f;
-            freqView.setText(String.format("%.2f Hz", base_frequency));
-        } else if (key.equals("sample_frequency")) {
-            int i = Integer.valueOf(sharedPreferences.getString("sample_frequency", "30"));
+        } else if (key.equals("debug_overlay")) {
+            setDebugOverlay(sharedPreferences.getBoolean("debug_overlay", false));
+        } else if (key.equals("base_frequency") || key.equals("sample_frequency")) {
+            analysisConfig = readAnalysisConfig(sharedPreferences);
+            freqView.setText(String.format("%.2f Hz", analysisConfig.referencePitch));
             if (audioThread != null)
-                audioThread.updateSampleFrequency(i);
+                audioThread.setConfig(analysisConfig);
         }
 
     }
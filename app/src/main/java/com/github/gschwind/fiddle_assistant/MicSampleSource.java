@@ -0,0 +1,151 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.util.Pair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MicSampleSource implements SampleSource {
+
+    private final int rate;
+    private final int bufferSize;
+    private final int audioSource;
+
+    private AudioRecord audioRecord;
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+
+    private static final String LOG_TAG = "MicSampleSource";
+
+    public MicSampleSource() {
+        this(MediaRecorder.AudioSource.MIC);
+    }
+
+    // The AudioRecord buffer is the smallest the device accept, AudioThread
+    // read it every hop with blocking reads.
+    public MicSampleSource(int audioSource) {
+        Pair<Integer, Integer> r = getValidSampleRates();
+        rate = r.first;
+        bufferSize = r.second;
+        this.audioSource = audioSource;
+    }
+
+    // UNPROCESSED when the device support it, it skip the noise suppression
+    // and automatic gain of MIC, and their latency. MIC otherwise.
+    static int getLowLatencySource(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            if (audioManager != null
+                    && "true".equals(audioManager.getProperty(AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED)))
+                return MediaRecorder.AudioSource.UNPROCESSED;
+        }
+        return MediaRecorder.AudioSource.MIC;
+    }
+
+    static Pair<Integer, Integer> getValidSampleRates() {
+        int[] rates = new int[] {48000, 44100, 22050, 16000, 11025, 8000};
+
+        for (int rate : rates) {  // add the rates you wish to check against
+            int bufferSize = AudioRecord.getMinBufferSize(rate, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            if (bufferSize > 0) {
+                return new Pair<Integer, Integer>(rate, bufferSize);
+            }
+        }
+
+        return new Pair<Integer, Integer>(-1, -1);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return rate;
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return true;
+    }
+
+    @Override
+    public void start() throws IOException {
+        /* set audio recorder parameters, and start recording */
+        audioRecord = new AudioRecord(audioSource, rate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED && audioSource != MediaRecorder.AudioSource.MIC) {
+            Log.w(LOG_TAG, "audio source " + audioSource + " unavailable, fallback to MIC");
+            audioRecord.release();
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, rate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        }
+
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            audioRecord = null;
+            throw new IOException("cannot initialize AudioRecord");
+        }
+
+        audioRecord.startRecording();
+    }
+
+    @Override
+    public int read(short[] data, int offset, int length, boolean blocking) {
+        return audioRecord.read(data, offset, length, blocking ? AudioRecord.READ_BLOCKING : AudioRecord.READ_NON_BLOCKING);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        return audioRecord.read(buffer, sizeInBytes, AudioRecord.READ_BLOCKING);
+    }
+
+    @Override
+    public long getCaptureTime(long position) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || audioRecord == null)
+            return -1;
+        if (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) != AudioRecord.SUCCESS)
+            return -1;
+        return timestamp.nanoTime + (position - timestamp.framePosition) * 1000000000L / rate;
+    }
+
+    @Override
+    public void release() {
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+                audioRecord.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            audioRecord = null;
+        }
+    }
+
+}
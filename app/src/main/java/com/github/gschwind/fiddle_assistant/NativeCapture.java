@@ -0,0 +1,138 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import android.os.Build;
+
+// Capture and analysis in the native audio callback, AAudio or OpenSL ES.
+// Java only start and configure it, and poll the results of the frames. Not
+// thread safe, it is driven by AudioThread.
+public class NativeCapture {
+
+    // Keep in sync with native-lib.cpp
+    static final int BACKEND_AAUDIO = 1;
+    static final int BACKEND_OPENSL = 2;
+    static final int BACKEND_FAKE = 3; // a generated tone, without any audio device
+
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private long opaqueNativeHandle;
+    private final int backend;
+    private int sample_rate;
+
+    // inputPreset is a MediaRecorder.AudioSource, fakeFrequency the tone of
+    // BACKEND_FAKE.
+    public NativeCapture(int backend, int inputPreset, double fakeFrequency) {
+        this.backend = backend;
+        opaqueNativeHandle = nativeCreate(backend, inputPreset, fakeFrequency);
+        if (opaqueNativeHandle == 0)
+            throw new IllegalArgumentException("unsupported capture backend " + backend);
+    }
+
+    // AAudio input is reliable from Android 8.1, OpenSL ES before.
+    static int getDefaultBackend() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 ? BACKEND_AAUDIO : BACKEND_OPENSL;
+    }
+
+    public int getBackend() {
+        return backend;
+    }
+
+    // Start the capture at sampleRate, 0 for the device rate. Return the
+    // actual rate, negative on error.
+    public int start(int sampleRate, AnalysisConfig config) {
+        int rate = nativeStart(opaqueNativeHandle, sampleRate, config.frameRate,
+                config.interpolationFactor, config.windowSigmaHz);
+        sample_rate = Math.max(0, rate);
+        return rate;
+    }
+
+    public int getSampleRate() {
+        return sample_rate;
+    }
+
+    // Samples between two frames, applied from the next frame on.
+    public void setHop(int hop) {
+        if (opaqueNativeHandle == 0)
+            return;
+        nativeSetHop(opaqueNativeHandle, hop);
+    }
+
+    // Build the window of config, the callback switch to it between two
+    // frames. On error, or once disposed, nothing is changed.
+    public int configure(AnalysisConfig config) {
+        if (opaqueNativeHandle == 0)
+            return -1;
+        return nativeConfigure(opaqueNativeHandle, config.interpolationFactor, config.windowSigmaHz);
+    }
+
+    // Copy the pending frames, times receive the System.nanoTime of the
+    // capture of the last sample and of the result of each frame, results
+    // ANALYZE_RESULT_SIZE floats per frame as ToneAnalyzer.analyze. Return
+    // the number of frames, 0 once disposed.
+    public int poll(long[] times, float[] results) {
+        if (opaqueNativeHandle == 0)
+            return 0;
+        return nativePoll(opaqueNativeHandle, times, results);
+    }
+
+    // Frames dropped because poll was not called fast enough.
+    public long getDropped() {
+        if (opaqueNativeHandle == 0)
+            return 0;
+        return nativeDropped(opaqueNativeHandle);
+    }
+
+    // Move the native stage histograms into out, PipelineMetrics.HISTOGRAM_SIZE
+    // counts, zero once disposed.
+    public void drainMetrics(long[] out) {
+        if (opaqueNativeHandle == 0) {
+            java.util.Arrays.fill(out, 0);
+            return;
+        }
+        nativeDrainMetrics(opaqueNativeHandle, out);
+    }
+
+    public void stop() {
+        if (opaqueNativeHandle == 0)
+            return;
+        nativeStop(opaqueNativeHandle);
+    }
+
+    public void dispose() {
+        if (opaqueNativeHandle != 0)
+            nativeDispose(opaqueNativeHandle);
+        opaqueNativeHandle = 0;
+    }
+
+    private static native long nativeCreate(int backend, int inputPreset, double fakeFrequency);
+    private static native int nativeStart(long handle, int sampleRate, int frameRate, int interpolationFactor, double sigmaHz);
+    private static native void nativeSetHop(long handle, int hop);
+    private static native int nativeConfigure(long handle, int interpolationFactor, double sigmaHz);
+    private static native int nativePoll(long handle, long[] times, float[] results);
+    private static native long nativeDropped(long handle);
+    private static native void nativeDrainMetrics(long handle, long[] out);
+    private static native void nativeStop(long handle);
+    private static native void nativeDispose(long handle);
+
+}
@@ -0,0 +1,173 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log2 histograms of the duration of the stages of the analysis pipeline and
+// a few event counters, shared by the audio and UI threads. Bucket i count
+// the durations in [2^i, 2^(i+1)) ns. Recording never allocate, the native
+// stages are drained from ToneAnalyzer and NativeCapture into the same
+// layout.
+public final class PipelineMetrics {
+
+    // Keep in sync with stage_metrics.hxx
+    static final int CAPTURE_WAIT = 0;   // blocked in the source reads of a frame
+    static final int JNI_ENTRY = 1;      // Java call to the start of the native analysis
+    static final int WINDOW = 2;
+    static final int FFT = 3;
+    static final int MAGNITUDE = 4;
+    static final int FIND_FREQUENCY = 5;
+    static final int COARSE_PITCH = 6;
+    static final int UI_DELIVERY = 7;    // AnalysisQueue.offer to the frame that drain it
+    static final int DRAW = 8;           // onDraw of the note views
+    static final int STAGE_COUNT = 9;
+
+    static final String[] STAGE_NAMES = {
+            "capture_wait", "jni_entry", "window", "fft", "magnitude",
+            "find_frequency", "coarse_pitch", "ui_delivery", "draw"
+    };
+
+    static final int BUCKET_COUNT = 32;
+    static final int HISTOGRAM_SIZE = STAGE_COUNT*BUCKET_COUNT;
+
+    static final int DROPPED = 0;        // results evicted or dropped by a full AnalysisQueue
+    static final int NATIVE_DROPPED = 1; // results dropped by the native capture queue
+    static final int COALESCED = 2;      // results drained with a newer one in the same frame
+    static final int COMPACTIONS = 3;    // System.arraycopy of the AudioThread sample buffer
+    static final int COUNTER_COUNT = 4;
+
+    static final String[] COUNTER_NAMES = {
+            "dropped", "native_dropped", "coalesced", "compactions"
+    };
+
+    private static final AtomicLongArray histograms = new AtomicLongArray(HISTOGRAM_SIZE);
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+
+    private PipelineMetrics() {
+    }
+
+    static int bucket(long ns) {
+        if (ns <= 1)
+            return 0;
+        return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(ns));
+    }
+
+    public static void record(int stage, long ns) {
+        histograms.getAndIncrement(stage*BUCKET_COUNT + bucket(ns));
+    }
+
+    public static void count(int counter, long n) {
+        counters.getAndAdd(counter, n);
+    }
+
+    // Add HISTOGRAM_SIZE counts, as filled by the native drainMetrics.
+    public static void add(long[] counts) {
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] != 0)
+                histograms.getAndAdd(i, counts[i]);
+        }
+    }
+
+    public static void reset() {
+        for (int i = 0; i < histograms.length(); ++i)
+            histograms.set(i, 0);
+        for (int i = 0; i < counters.length(); ++i)
+            counters.set(i, 0);
+    }
+
+    public static long getCounter(int counter) {
+        return counters.get(counter);
+    }
+
+    public static long getCount(int stage) {
+        long n = 0;
+        for (int b = 0; b < BUCKET_COUNT; ++b)
+            n += histograms.get(stage*BUCKET_COUNT + b);
+        return n;
+    }
+
+    // Upper bound in ns of the bucket holding the quantile q of stage, 0
+    // without any sample.
+    public static long getQuantile(int stage, double q) {
+        long n = getCount(stage);
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(q*n);
+        long sum = 0;
+        for (int b = 0; b < BUCKET_COUNT; ++b) {
+            sum += histograms.get(stage*BUCKET_COUNT + b);
+            if (sum >= rank)
+                return 2L << b;
+        }
+        return 2L << (BUCKET_COUNT - 1);
+    }
+
+    // One line per stage with its count, median and 99th percentile in us,
+    // then the counters, for the debug overlay.
+    public static void summary(StringBuilder out) {
+        for (int s = 0; s < STAGE_COUNT; ++s) {
+            long n = getCount(s);
+            if (n == 0)
+                continue;
+            out.append(String.format("%-15s %7d  p50 %8.1f  p99 %8.1f us%n", STAGE_NAMES[s], n,
+                    getQuantile(s, 0.5)/1000.0, getQuantile(s, 0.99)/1000.0));
+        }
+        for (int c = 0; c < COUNTER_COUNT; ++c)
+            out.append(String.format("%-15s %7d%n", COUNTER_NAMES[c], getCounter(c)));
+    }
+
+    // Write the quantiles, the counters and the raw buckets into file.
+    public static void dump(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# stage count p50_ns p90_ns p99_ns");
+            for (int s = 0; s < STAGE_COUNT; ++s) {
+                out.printf("%s %d %d %d %d%n", STAGE_NAMES[s], getCount(s), getQuantile(s, 0.5),
+                        getQuantile(s, 0.9), getQuantile(s, 0.99));
+            }
+
+            out.println("# counter value");
+            for (int c = 0; c < COUNTER_COUNT; ++c)
+                out.printf("%s %d%n", COUNTER_NAMES[c], getCounter(c));
+
+            out.println("# stage, then the counts of the durations in [2^i, 2^(i+1)) ns for i in 0.." + (BUCKET_COUNT - 1));
+            for (int s = 0; s < STAGE_COUNT; ++s) {
+                out.print(STAGE_NAMES[s]);
+                for (int b = 0; b < BUCKET_COUNT; ++b) {
+                    out.print(' ');
+                    out.print(histograms.get(s*BUCKET_COUNT + b));
+                }
+                out.println();
+            }
+
+            if (out.checkError())
+                throw new IOException("cannot write " + file);
+        } finally {
+            out.close();
+        }
+    }
+
+}
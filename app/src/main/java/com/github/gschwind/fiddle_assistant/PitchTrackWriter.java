@@ -0,0 +1,52 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+// CSV pitch track, one line per analysed frame.
+public class PitchTrackWriter {
+
+    private final BufferedWriter out;
+
+    public PitchTrackWriter(File file) throws IOException {
+        out = new BufferedWriter(new FileWriter(file), 1 << 16);
+        out.write("time,frequency,energy,confidence,level_db\n");
+    }
+
+    // time in seconds of the end of the analysed window.
+    public void write(double time, float[] analysis) throws IOException {
+        out.write(String.format(Locale.ROOT, "%.4f,%.3f,%g,%.3f,%.1f\n", time,
+                analysis[ToneAnalyzer.ANALYZE_FREQUENCY],
+                analysis[ToneAnalyzer.ANALYZE_ENERGY],
+                analysis[ToneAnalyzer.ANALYZE_CONFIDENCE],
+                analysis[ToneAnalyzer.ANALYZE_LEVEL_DB]));
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+// Drive the animations of the views from the display vsync, independently of
+// the analysis rate. A view is only invalidated when it requested a render or
+// its animation is not finished, the frame callback is not posted at all when
+// every view is idle.
+public class RenderScheduler implements Choreographer.FrameCallback {
+
+    public interface Renderable {
+        // Advance the animations by dt seconds, return true while they are
+        // not finished.
+        boolean animate(float dt);
+
+        void invalidate();
+    }
+
+    // Step of the first frame after an idle period, and longest step.
+    private static final float FIRST_STEP = 1.0f/60.0f;
+    private static final float MAX_STEP = 0.1f;
+
+    private Renderable[] views = new Renderable[0];
+    private boolean[] dirty = new boolean[0];
+
+    private boolean running = false;
+    private boolean posted = false;
+    private long last_frame_time = 0;
+
+    public void add(Renderable view) {
+        views = Arrays.copyOf(views, views.length + 1);
+        dirty = Arrays.copyOf(dirty, dirty.length + 1);
+        views[views.length - 1] = view;
+        dirty[dirty.length - 1] = true;
+        post();
+    }
+
+    // Draw view on the next frame.
+    public void requestRender(Renderable view) {
+        for (int i = 0; i < views.length; ++i) {
+            if (views[i] == view) {
+                dirty[i] = true;
+                post();
+                return;
+            }
+        }
+        view.invalidate();
+    }
+
+    public void start() {
+        running = true;
+        post();
+    }
+
+    public void stop() {
+        running = false;
+        if (posted) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            posted = false;
+        }
+    }
+
+    private void post() {
+        if (!running || posted)
+            return;
+        posted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        posted = false;
+
+        float dt = FIRST_STEP;
+        if (last_frame_time != 0)
+            dt = Math.min(MAX_STEP, (frameTimeNanos - last_frame_time) * 1e-9f);
+
+        boolean animating = false;
+        for (int i = 0; i < views.length; ++i) {
+            boolean more = views[i].animate(dt);
+            if (more || dirty[i]) {
+                dirty[i] = false;
+                views[i].invalidate();
+            }
+            animating |= more;
+        }
+
+        if (animating) {
+            last_frame_time = frameTimeNanos;
+            post();
+        } else {
+            last_frame_time = 0;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Mono 16 bits PCM stream analysed by AudioThread, the live microphone, a
+// file or a generated signal.
+public interface SampleSource {
+
+    // The sample rate, negative when the source is not usable.
+    int getSampleRate();
+
+    // false for sources that can be read faster than real time, they never
+    // have pending samples for a non blocking read.
+    boolean isRealTime();
+
+    void start() throws IOException;
+
+    // Same contract as AudioRecord.read, a blocking read that return 0 mean
+    // the end of the stream.
+    int read(short[] data, int offset, int length, boolean blocking);
+
+    // Blocking read of sizeInBytes into the start of a direct buffer in native
+    // order, whatever its position, as AudioRecord.read(ByteBuffer, int, int).
+    int read(ByteBuffer buffer, int sizeInBytes);
+
+    // System.nanoTime at which the sample at position, counted from start,
+    // was captured, negative if the source cannot tell.
+    long getCaptureTime(long position);
+
+    void release();
+
+}
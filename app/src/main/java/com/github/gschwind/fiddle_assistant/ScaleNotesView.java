@@ -27,7 +27,10 @@ import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.View;
 
-public class ScaleNotesView extends View {
+public class ScaleNotesView extends View implements RenderScheduler.Renderable {
+
+    // Time constant in seconds of the scroll toward scale_goto_note.
+    static final float SCROLL_TAU = 0.1f;
 
     int width;
     int height;
@@ -58,6 +61,17 @@ public class ScaleNotesView extends View {
 
     String[] note_names;
 
+    // "name octave" labels and their widths for the notes 0 to LABEL_COUNT-1,
+    // built by updateNoteNames.
+    static final int LABEL_COUNT = 144;
+    String[] labels = new String[LABEL_COUNT];
+    float[] label_widths = new float[LABEL_COUNT];
+
+    // Ticks of the 5 visible notes, 10 lines of 4 floats per note.
+    float[] tick_points = new float[5*10*4];
+
+    RenderScheduler scheduler = null;
+
     public ScaleNotesView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -76,12 +90,21 @@ public class ScaleNotesView extends View {
         scale_goto_note = 48.0f;
 
         note_names = note_names_english;
+        buildLabels();
+
+    }
 
+    private void buildLabels() {
+        for (int i = 0; i < LABEL_COUNT; ++i) {
+            labels[i] = String.format("%s %d", note_names[i % 12], (i+3) / 12);
+            label_widths[i] = blackColor.measureText(labels[i]);
+        }
     }
 
 
     @Override
     protected void onDraw (Canvas canvas) {
+        long draw_start = System.nanoTime();
         super.onDraw(canvas);
 
         float scale_half_tone_width = width/2.5f;
@@ -93,18 +116,25 @@ public class ScaleNotesView extends View {
         float circle_radius = 0.3f*scale_height*0.5f;
 
         int nearest = Math.round(scale_current_note);
+        int p = 0;
         for (int k = -2; k < 3; ++k) {
             int i = nearest+k;
-            int o = (i+3) / 12; //octave
-            int n = i % 12;     //note
-            String text = String.format("%s %d", note_names[n], o);
-            float textWidth = blackColor.measureText(text);
-            canvas.drawText(text, width/2.0f+(i- scale_current_note)*scale_half_tone_width-textWidth/2.0f, blackColor.getTextSize(), blackColor);
-            canvas.drawLine((width/2+(i- scale_current_note)*scale_half_tone_width), baseline-large_bar_height, width/2+(i- scale_current_note)*scale_half_tone_width, baseline+large_bar_height, grayColor);
+            if (i >= 0 && i < LABEL_COUNT) {
+                canvas.drawText(labels[i], width/2.0f+(i- scale_current_note)*scale_half_tone_width-label_widths[i]/2.0f, blackColor.getTextSize(), blackColor);
+            }
+            float x = width/2+(i- scale_current_note)*scale_half_tone_width;
+            tick_points[p++] = x;
+            tick_points[p++] = baseline-large_bar_height;
+            tick_points[p++] = x;
+            tick_points[p++] = baseline+large_bar_height;
             for (int l = 1; l < 10; l += 1) {
-                canvas.drawLine(width/2.0f+scale_half_tone_width*l/10.0f+(i- scale_current_note)*scale_half_tone_width, baseline-thin_bar_height, (width/2+scale_half_tone_width*l*0.1f+(i- scale_current_note)*scale_half_tone_width), baseline+thin_bar_height, grayColor);
+                tick_points[p++] = x+scale_half_tone_width*l*0.1f;
+                tick_points[p++] = baseline-thin_bar_height;
+                tick_points[p++] = x+scale_half_tone_width*l*0.1f;
+                tick_points[p++] = baseline+thin_bar_height;
             }
         }
+        canvas.drawLines(tick_points, 0, p, grayColor);
 
         if (!Float.valueOf(current_note).isNaN() && (Math.abs(current_note- scale_current_note) < 0.5)) {
             previous_note_shown = current_note;
@@ -121,6 +151,7 @@ public class ScaleNotesView extends View {
             canvas.drawCircle((float)(width/2+pos*scale_half_tone_width), baseline, circle_radius-2, cursorColor);
         }
 
+        PipelineMetrics.record(PipelineMetrics.DRAW, System.nanoTime() - draw_start);
     }
 
     @Override
@@ -139,15 +170,35 @@ public class ScaleNotesView extends View {
 
         current_note = (float)new_note;
 
-        scale_current_note = scale_goto_note;
-
         if (!Float.valueOf(current_note).isNaN() && current_note > 12.0) {
             if (Math.abs(previous_note - current_note) < 0.5)
                 scale_goto_note = Math.round(current_note);
             previous_note = current_note;
         }
 
-        invalidate();
+        requestRender();
+    }
+
+    public void setRenderScheduler(RenderScheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.add(this);
+    }
+
+    private void requestRender() {
+        if (scheduler != null)
+            scheduler.requestRender(this);
+        else
+            invalidate();
+    }
+
+    @Override
+    public boolean animate(float dt) {
+        scale_current_note += (1.0f - (float)Math.exp(-dt/SCROLL_TAU))*(scale_goto_note - scale_current_note);
+        if (Math.abs(scale_goto_note - scale_current_note) < 0.001f) {
+            scale_current_note = scale_goto_note;
+            return false;
+        }
+        return true;
     }
 
     public void updateNoteNames(String v) {
@@ -159,7 +210,9 @@ public class ScaleNotesView extends View {
             note_names = note_names_english;
         }
 
-        invalidate();
+        buildLabels();
+
+        requestRender();
     }
 
 
@@ -0,0 +1,192 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Read only view of a log written by SessionLogWriter. The file is memory
+// mapped, only a sparse index of one entry per BLOCK_RECORDS records is kept
+// on the heap, with the time of the first record of the block and the range of
+// its notes.
+public class SessionLogReader {
+
+    static final int BLOCK_RECORDS = 256;
+
+    private final MappedByteBuffer records;
+    private final int count;
+    private final long start_epoch;
+
+    private final int[] block_time;
+    private final float[] block_min;
+    private final float[] block_max;
+
+    public SessionLogReader(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < SessionLogWriter.HEADER_SIZE)
+                throw new IOException("truncated session log: " + file);
+
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt(0) != SessionLogWriter.MAGIC
+                    || map.getShort(4) != SessionLogWriter.VERSION
+                    || map.getShort(6) != SessionLogWriter.RECORD_SIZE)
+                throw new IOException("not a session log: " + file);
+
+            start_epoch = map.getLong(8);
+            // The log may still be written, ignore a partial last record.
+            count = (int) ((size - SessionLogWriter.HEADER_SIZE) / SessionLogWriter.RECORD_SIZE);
+            records = map;
+        }
+
+        int blocks = (count + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        block_time = new int[blocks];
+        block_min = new float[blocks];
+        block_max = new float[blocks];
+
+        for (int b = 0; b < blocks; ++b) {
+            int first = b * BLOCK_RECORDS;
+            int last = Math.min(count, first + BLOCK_RECORDS);
+            float min = Float.NaN;
+            float max = Float.NaN;
+            for (int i = first; i < last; ++i) {
+                float note = getNote(i);
+                if (Float.isNaN(note))
+                    continue;
+                if (!(note >= min))
+                    min = note;
+                if (!(note <= max))
+                    max = note;
+            }
+            block_time[b] = getTime(first);
+            block_min[b] = min;
+            block_max[b] = max;
+        }
+    }
+
+    private static int offset(int i) {
+        return SessionLogWriter.HEADER_SIZE + i * SessionLogWriter.RECORD_SIZE;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Wall clock time of the start of the session, in ms since the epoch.
+    public long getStartEpoch() {
+        return start_epoch;
+    }
+
+    // Time of record i in ms since the start of the session.
+    public int getTime(int i) {
+        return records.getInt(offset(i));
+    }
+
+    public float getNote(int i) {
+        return records.getFloat(offset(i) + 4);
+    }
+
+    public float getEnergy(int i) {
+        return records.getFloat(offset(i) + 8);
+    }
+
+    public float getConfidence(int i) {
+        return records.getFloat(offset(i) + 12);
+    }
+
+    // Index of the last record at or before time, 0 if time is before the
+    // first one.
+    public int seek(int time) {
+        if (count == 0)
+            return 0;
+
+        int b = Arrays.binarySearch(block_time, time);
+        if (b < 0)
+            b = Math.max(0, -b - 2);
+        // Equal times may span several blocks.
+        while (b + 1 < block_time.length && block_time[b + 1] <= time)
+            ++b;
+
+        int lo = b * BLOCK_RECORDS;
+        int hi = Math.min(count, lo + BLOCK_RECORDS) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (getTime(mid) <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    // Range of the notes of the records first to last included, in out[0]
+    // and out[1], NaN when none of them have a pitch. Whole blocks use the
+    // index.
+    public void getNoteRange(int first, int last, float[] out) {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        first = Math.max(0, first);
+        last = Math.min(count - 1, last);
+        int i = first;
+        while (i <= last) {
+            float lo, hi;
+            if (i % BLOCK_RECORDS == 0 && i + BLOCK_RECORDS - 1 <= last) {
+                lo = block_min[i / BLOCK_RECORDS];
+                hi = block_max[i / BLOCK_RECORDS];
+                i += BLOCK_RECORDS;
+            } else {
+                lo = hi = getNote(i);
+                ++i;
+            }
+            if (Float.isNaN(lo))
+                continue;
+            if (!(lo >= min))
+                min = lo;
+            if (!(hi <= max))
+                max = hi;
+        }
+        out[0] = min;
+        out[1] = max;
+    }
+
+    // Most recent session log of dir, null if there is none.
+    public static File findLatest(File dir) {
+        File[] files = dir.listFiles();
+        File latest = null;
+        if (files == null)
+            return null;
+        for (File f : files) {
+            if (!f.getName().endsWith(".log"))
+                continue;
+            if (latest == null || f.lastModified() > latest.lastModified())
+                latest = f;
+        }
+        return latest;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Append only log of the analysed frames of a session, little endian:
+//
+//   header, HEADER_SIZE bytes:
+//     int MAGIC, short VERSION, short RECORD_SIZE, long start epoch in ms,
+//     zero padding.
+//   records, RECORD_SIZE bytes:
+//     int time in ms since start, float diatonic note (NaN without pitch),
+//     float energy, float confidence.
+//
+// Records are appended into a batch on the caller thread, full or old batches
+// are written by a background thread.
+public class SessionLogWriter {
+
+    static final int MAGIC = 0x4c534146; // "FASL"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 16;
+
+    static final String SESSIONS_DIR = "sessions";
+
+    private static final String LOG_TAG = "SessionLogWriter";
+
+    private static final int BATCH_RECORDS = 256;
+    private static final long FLUSH_PERIOD_MS = 2000;
+
+    private final File file;
+    private final long start_time; // elapsedRealtime of the start
+    private final FileChannel channel;
+    private final ExecutorService writer;
+
+    // Written batches are recycled, usually only two of them exist.
+    private final ConcurrentLinkedQueue<ByteBuffer> free_batches = new ConcurrentLinkedQueue<>();
+    private ByteBuffer batch;
+    private long last_flush;
+
+    public SessionLogWriter(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+
+        long epoch = System.currentTimeMillis();
+        start_time = SystemClock.elapsedRealtime();
+        last_flush = start_time;
+
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date(epoch));
+        File f = new File(dir, "session-" + name + ".log");
+        for (int i = 1; f.exists(); ++i)
+            f = new File(dir, "session-" + name + "-" + i + ".log");
+        file = f;
+        channel = new FileOutputStream(file).getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort((short) RECORD_SIZE);
+        header.putLong(epoch);
+        header.rewind();
+        channel.write(header);
+
+        writer = Executors.newSingleThreadExecutor();
+        batch = newBatch();
+    }
+
+    // Directory of the session logs in the application storage.
+    public static File getSessionsDir(File filesDir) {
+        return new File(filesDir, SESSIONS_DIR);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private ByteBuffer newBatch() {
+        ByteBuffer b = free_batches.poll();
+        if (b == null)
+            b = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.clear();
+        return b;
+    }
+
+    // time as SystemClock.elapsedRealtime().
+    public void append(long time, float note, float energy, float confidence) {
+        batch.putInt((int) (time - start_time));
+        batch.putFloat(note);
+        batch.putFloat(energy);
+        batch.putFloat(confidence);
+
+        if (!batch.hasRemaining() || time - last_flush >= FLUSH_PERIOD_MS) {
+            last_flush = time;
+            submit();
+        }
+    }
+
+    private void submit() {
+        if (batch.position() == 0)
+            return;
+
+        final ByteBuffer b = batch;
+        batch = newBatch();
+        b.flip();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (b.hasRemaining())
+                        channel.write(b);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "write failed: " + e.getMessage());
+                }
+                free_batches.add(b);
+            }
+        });
+    }
+
+    // Write the pending records and close the file, the writer is unusable after.
+    public void close() {
+        submit();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "close failed: " + e.getMessage());
+                }
+            }
+        });
+        writer.shutdown();
+    }
+
+}
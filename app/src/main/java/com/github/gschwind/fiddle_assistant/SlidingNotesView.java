@@ -22,26 +22,39 @@ along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
 package com.github.gschwind.fiddle_assistant;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
 import android.view.View;
 
 import java.io.Console;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Arrays;
 
 
-public class SlidingNotesView extends View {
+public class SlidingNotesView extends View implements RenderScheduler.Renderable {
     static boolean BLACK_BACKGROUND = false;
 
+    // Time constant in seconds of the scroll toward goto_note.
+    static final float SCROLL_TAU = 0.316f;
+
     int POINT_HEIGHT;
     int POINT_BORDER_WIDTH;
     int LINE_SPACING;
     int LEFT_SPACING;
 
-    LinkedList<Float> notes;
+    // Most recent notes first, NaN where there is no note to draw. The
+    // capacity follow the width of the view.
+    FloatRingBuffer notes;
+
+    // Session log shown instead of the live notes, see setHistory.
+    SessionLogReader history = null;
+    int history_index; // newest record shown, at the left
+    float touch_x;
+    float[] history_range = new float[2];
 
     Paint grayColor;
     Paint blackColor;
@@ -76,6 +89,32 @@ public class SlidingNotesView extends View {
 
     Paint[] lineNoteColor;
 
+    RenderScheduler scheduler = null;
+
+    // The staff repeat every octave, one octave of lines and names is drawn
+    // once into this tile, see buildStaffTile.
+    static final int STAFF_NOTES = 120;
+    Bitmap staff_tile = null;
+    // Filtered, the tile is drawn at the fractional offset of the scrolling.
+    Paint staffPaint;
+
+    // Dots of the current frame, see addDot and drawDots.
+    static final int DOT_COLORS = 34; // 0 to 33 cents
+    static final int[] note_colors = buildNoteColors();
+    float[] dot_points = new float[0];
+    float[] dot_sorted = new float[0];
+    int[] dot_color = new int[0];
+    int[] dot_color_offset = new int[DOT_COLORS + 1];
+    int dot_count = 0;
+    Paint dotPaint;
+    Paint dotBorderPaint;
+
+    // "h:mm:ss" label of the shown history record and its width, only
+    // formatted again when the second change.
+    int time_label_seconds = -1;
+    String time_label = null;
+    float time_label_width;
+
 
     public SlidingNotesView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -86,7 +125,7 @@ public class SlidingNotesView extends View {
         POINT_HEIGHT = (int)(density*4.0f)+1;
         POINT_BORDER_WIDTH = (int)(density*1.0f)+1;
 
-        notes = new LinkedList<Float>();
+        notes = new FloatRingBuffer(64);
 
         grayColor = new Paint(Paint.ANTI_ALIAS_FLAG);
         grayColor.setARGB(255, 128, 128, 128);
@@ -106,6 +145,18 @@ public class SlidingNotesView extends View {
         notesColor = new Paint(Paint.ANTI_ALIAS_FLAG);
         notesColor.setARGB(255, 0, 0, 255);
 
+        // Square dots, the color one is inside the black border.
+        dotPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        dotPaint.setStyle(Paint.Style.STROKE);
+        dotPaint.setStrokeCap(Paint.Cap.SQUARE);
+        dotPaint.setStrokeWidth(2 * (POINT_HEIGHT - POINT_BORDER_WIDTH));
+
+        dotBorderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        dotBorderPaint.setARGB(255, 0, 0, 0);
+        dotBorderPaint.setStyle(Paint.Style.STROKE);
+        dotBorderPaint.setStrokeCap(Paint.Cap.SQUARE);
+        dotBorderPaint.setStrokeWidth(2 * POINT_HEIGHT);
+
         referColor = new Paint(Paint.ANTI_ALIAS_FLAG);
         referColor.setARGB(255, 128, 128, 128);
         referColor.setTextSize(density*12.0f);
@@ -121,6 +172,8 @@ public class SlidingNotesView extends View {
         cursorColor.setTypeface(Typeface.DEFAULT_BOLD);
 
 
+        staffPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
         lineNoteColor = new Paint[] {majorColor, minorColor, majorColor, referColor, minorColor,
                 majorColor, minorColor, majorColor, majorColor, minorColor, majorColor, minorColor};
 
@@ -128,42 +181,142 @@ public class SlidingNotesView extends View {
         goto_note = 0.0f;
         last_valid_note = 48f;
 
-        notes.addFirst(Float.NaN);
+        notes.add(Float.NaN);
 
         updateNoteNames("english");
 
     }
 
-    private void clipNotesList(int count) {
-        ListIterator<Float> iter = notes.listIterator();
-        int i = 0;
-        while (iter.hasNext()) {
-            iter.next();
-            if (i >= count)
-                iter.remove();
-            ++i;
+    // Color of the dots by deviation from the nearest note, in cents, it
+    // saturate at 1/3 of half tone.
+    private static int[] buildNoteColors() {
+        int[] colors = new int[DOT_COLORS];
+        for (int c = 0; c < DOT_COLORS; ++c) {
+            double alpha = Math.min(1.0, c * 3.0 / 100.0);
+            colors[c] = Color.argb(255, (int) (255.0 * Math.min(1.0, 2 * alpha)), (int) (255.0 * Math.min(1.0, 2 * (1.0 - alpha))), 0);
+        }
+        return colors;
+    }
+
+    private void ensureDotCapacity(int count) {
+        if (dot_points.length < 2 * count) {
+            dot_points = new float[2 * count];
+            dot_sorted = new float[2 * count];
+            dot_color = new int[count];
         }
     }
 
-    private void drawNotesBlackBackground(Canvas canvas) {
+    // Queue the dot of note f at column i, drawn by drawDots.
+    private void addDot(int i, float f) {
         int local_base_line = height - 6;
 
-        int i = 0;
-        ListIterator<Float> iter = notes.listIterator();
-        while (iter.hasNext()) {
-            Float f = iter.next();
-            if (!f.isNaN()) {
-                double y = (f - base_note) * LINE_SPACING;
-                if (y > -2.0 * LINE_SPACING && y < height + 2 * LINE_SPACING) {
-                    canvas.drawRect((i * density * 2 + LEFT_SPACING - POINT_HEIGHT), (int) Math.round(local_base_line - y - POINT_HEIGHT), (i * density * 2 + LEFT_SPACING + POINT_HEIGHT), (int) Math.round(local_base_line - y + POINT_HEIGHT), blackColor);
-                }
+//        double x = ((f+12.0*100-0.5 - (Math.floor((f+12.0*100+0.5)/12.0)*12.0))+0.5) * LINE_SPACING;
+        float y = (f - base_note) * LINE_SPACING;
+        if (y > -2.0f * LINE_SPACING && y < height + 2.0f * LINE_SPACING) {
+            float pos = Math.min(0.5f, Math.max(-0.5f, f - Math.round(f)));
+            dot_points[2 * dot_count] = i * density * 2 + LEFT_SPACING;
+            dot_points[2 * dot_count + 1] = local_base_line - y;
+            dot_color[dot_count] = Math.min(DOT_COLORS - 1, Math.round(Math.abs(pos) * 100.0f));
+            ++dot_count;
+        }
+    }
+
+    // Draw the queued dots with one drawPoints for the borders and one per
+    // color, the dots are sorted by color with a counting sort.
+    private void drawDots(Canvas canvas) {
+        if (dot_count == 0)
+            return;
+
+        if (!BLACK_BACKGROUND)
+            canvas.drawPoints(dot_points, 0, 2 * dot_count, dotBorderPaint);
+
+        Arrays.fill(dot_color_offset, 0);
+        for (int k = 0; k < dot_count; ++k)
+            ++dot_color_offset[dot_color[k] + 1];
+        for (int c = 0; c < DOT_COLORS; ++c)
+            dot_color_offset[c + 1] += dot_color_offset[c];
+
+        for (int k = 0; k < dot_count; ++k) {
+            int d = dot_color_offset[dot_color[k]]++;
+            dot_sorted[2 * d] = dot_points[2 * k];
+            dot_sorted[2 * d + 1] = dot_points[2 * k + 1];
+        }
+
+        // dot_color_offset[c] is now the end of the color c.
+        int begin = 0;
+        for (int c = 0; c < DOT_COLORS; ++c) {
+            int end = dot_color_offset[c];
+            if (end > begin) {
+                dotPaint.setColor(note_colors[c]);
+                canvas.drawPoints(dot_sorted, 2 * begin, 2 * (end - begin), dotPaint);
             }
-            ++i;
+            begin = end;
+        }
+
+        dot_count = 0;
+    }
+
+    private void drawLiveNotes(Canvas canvas) {
+        int count = notes.size();
+
+        ensureDotCapacity(count);
+        for (int i = 0; i < count; ++i) {
+            float f = notes.get(i);
+            if (!Float.isNaN(f))
+                addDot(i, f);
+        }
+
+        drawDots(canvas);
+    }
+
+    // The note of record i as appendDouble would have kept it.
+    private float historyNote(int i) {
+        float f = history.getNote(i);
+        if (i > 0 && !(Math.abs(history.getNote(i - 1) - f) < 0.5))
+            return Float.NaN;
+        return f;
+    }
+
+    // Only the visible records are read from the mapped log.
+    private void drawHistoryNotes(Canvas canvas) {
+        int count = Math.min(history_index + 1, (int) ((width - LEFT_SPACING) / (density * 2)) + 2);
+
+        ensureDotCapacity(count);
+        for (int i = 0; i < count; ++i) {
+            float f = historyNote(history_index - i);
+            if (!Float.isNaN(f))
+                addDot(i, f);
+        }
+
+        drawDots(canvas);
+
+        int t = history.getTime(history_index) / 1000;
+        if (t != time_label_seconds) {
+            time_label_seconds = t;
+            time_label = String.format("%d:%02d:%02d", t / 3600, (t / 60) % 60, t % 60);
+            time_label_width = grayColor.measureText(time_label);
         }
+        canvas.drawText(time_label, width - time_label_width - density * 3.0f, grayColor.getTextSize() + density * 3.0f, grayColor);
+    }
+
+    // Move the staff to show the visible records of the history.
+    private void followHistory() {
+        int count = (int) ((width - LEFT_SPACING) / (density * 2)) + 2;
+        history.getNoteRange(history_index - count + 1, history_index, history_range);
+        if (Float.isNaN(history_range[0]))
+            return;
+
+        if (history_range[0] < goto_note + 2 || history_range[1] > goto_note + max_count)
+            goto_note = Math.max(0.0f, (history_range[0] + history_range[1] - max_count) / 2.0f);
+
+        float f = history.getNote(history_index);
+        if (!Float.isNaN(f))
+            goto_valid_note = f;
     }
 
     @Override
     protected void onDraw (Canvas canvas) {
+        long draw_start = System.nanoTime();
         super.onDraw(canvas);
 
         if (BLACK_BACKGROUND) {
@@ -172,46 +325,50 @@ public class SlidingNotesView extends View {
 
         int local_base_line = height - 6;
 
-        base_note += 0.1*(goto_note-base_note);
-        last_valid_note += 0.1*(goto_valid_note-last_valid_note);
-
         canvas.drawRect(0, (local_base_line-(last_valid_note-base_note-1.5f)*LINE_SPACING), width, (local_base_line-(last_valid_note-base_note+1.5f)*LINE_SPACING), cursorColor);
 
-        for (int i = 0; i < 120; ++i) {
-            float y = (i-base_note) * LINE_SPACING;
+        if (staff_tile == null)
+            buildStaffTile();
 
-            if (y > -2.0f*LINE_SPACING && y < height+2.0f*LINE_SPACING) {
-                canvas.drawRect(LEFT_SPACING, (local_base_line - y - 1), width, (local_base_line - y + 1), lineNoteColor[i % 12]);
-                canvas.drawText(note_names[i % 12], density*3.0f, (local_base_line - y + grayColor.getTextSize()/2.0f), grayColor);
+        if (staff_tile != null) {
+            int tile_height = 12*LINE_SPACING;
+            for (int o = 0; o < STAFF_NOTES/12; ++o) {
+                // Bottom of the tile of the octave o.
+                float y = local_base_line - (12*o-base_note-0.5f) * LINE_SPACING;
+                if (y > 0 && y - tile_height < height)
+                    canvas.drawBitmap(staff_tile, 0, y - tile_height, staffPaint);
             }
         }
 
-        int count = Math.min((width-LEFT_SPACING)/2, notes.size())+2;
+        if (history != null && history.getCount() > 0) {
+            drawHistoryNotes(canvas);
+        } else {
+            drawLiveNotes(canvas);
+        }
 
-        clipNotesList(count);
+        PipelineMetrics.record(PipelineMetrics.DRAW, System.nanoTime() - draw_start);
+    }
 
-        if (!BLACK_BACKGROUND) {
-            drawNotesBlackBackground(canvas);
+    // Draw the lines and names of one octave, the note 12*o+j centered at
+    // (11.5-j)*LINE_SPACING.
+    private void buildStaffTile() {
+        if (staff_tile != null) {
+            staff_tile.recycle();
+            staff_tile = null;
         }
 
-        int i = 0;
-        ListIterator<Float> iter = notes.listIterator();
-        while (iter.hasNext()) {
-            Float f = iter.next();
-            if (!f.isNaN()) {
-//                double x = ((f+12.0*100-0.5 - (Math.floor((f+12.0*100+0.5)/12.0)*12.0))+0.5) * LINE_SPACING;
-                double y = (f - base_note) * LINE_SPACING;
-                if (y > -2.0f * LINE_SPACING && y < height + 2.0f * LINE_SPACING) {
-                    double note = Math.round(f);
-                    double pos = Math.min(0.5, Math.max(-0.5, f - note));
-                    double alpha = Math.min(1.0, Math.abs(pos * 3.0));
-                    notesColor.setARGB(255, (int) (255.0 * Math.min(1.0, 2 * alpha)), (int) (255.0 * Math.min(1.0, 2 * (1.0 - alpha))), 0);
-                    canvas.drawRect((i * density * 2 + LEFT_SPACING - POINT_HEIGHT + POINT_BORDER_WIDTH), (int) Math.round(local_base_line - y - POINT_HEIGHT + POINT_BORDER_WIDTH), (i * density * 2 + LEFT_SPACING + POINT_HEIGHT - POINT_BORDER_WIDTH), (int) Math.round(local_base_line - y + POINT_HEIGHT - POINT_BORDER_WIDTH), notesColor);
-                }
-            }
-            ++i;
-        }
+        if (width <= 0)
+            return;
+
+        int tile_height = 12*LINE_SPACING;
+        staff_tile = Bitmap.createBitmap(width, tile_height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(staff_tile);
 
+        for (int j = 0; j < 12; ++j) {
+            float y = tile_height - (j+0.5f) * LINE_SPACING;
+            canvas.drawRect(LEFT_SPACING, y - 1, width, y + 1, lineNoteColor[j]);
+            canvas.drawText(note_names[j], density*3.0f, y + grayColor.getTextSize()/2.0f, grayColor);
+        }
     }
 
     @Override
@@ -225,6 +382,11 @@ public class SlidingNotesView extends View {
 
         max_count = (float)Math.floor((height-12)/LINE_SPACING);
 
+        buildStaffTile();
+
+        // One note every 2dp, plus the partially visible ones.
+        notes.resize((int)(width/(density*2))+2);
+
         invalidate();
         requestLayout();
 
@@ -249,22 +411,88 @@ public class SlidingNotesView extends View {
         }
         LEFT_SPACING += 4.0*density;
 
-        invalidate();
+        buildStaffTile();
+
+        requestRender();
+    }
+
+    public void setRenderScheduler(RenderScheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.add(this);
+    }
+
+    private void requestRender() {
+        if (scheduler != null)
+            scheduler.requestRender(this);
+        else
+            invalidate();
+    }
+
+    @Override
+    public boolean animate(float dt) {
+        if (history != null && history.getCount() > 0)
+            followHistory();
+
+        float k = 1.0f - (float)Math.exp(-dt/SCROLL_TAU);
+        base_note += k*(goto_note-base_note);
+        last_valid_note += k*(goto_valid_note-last_valid_note);
+
+        boolean moving = false;
+        if (Math.abs(goto_note-base_note) < 0.001f)
+            base_note = goto_note;
+        else
+            moving = true;
+        if (Math.abs(goto_valid_note-last_valid_note) < 0.001f)
+            last_valid_note = goto_valid_note;
+        else
+            moving = true;
+        return moving;
+    }
+
+    // Show the records of a session log instead of the live notes, scrolled
+    // by horizontal drags, null go back to the live notes.
+    public void setHistory(SessionLogReader reader) {
+        history = reader;
+        history_index = reader == null ? 0 : Math.max(0, reader.getCount() - 1);
+        requestRender();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (history == null)
+            return super.onTouchEvent(event);
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                touch_x = event.getX();
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                // Newest records are on the left, drag right to go forward.
+                int steps = (int) ((event.getX() - touch_x) / (density * 2));
+                if (steps != 0) {
+                    history_index = Math.max(0, Math.min(history.getCount() - 1, history_index + steps));
+                    touch_x += steps * density * 2;
+                    requestRender();
+                }
+                return true;
+        }
+
+        return super.onTouchEvent(event);
     }
 
     public void appendDouble(double f) {
 
         float current_note = (float)f;
 
-        if (!Float.valueOf(current_note).isNaN()) {
+        if (!Float.isNaN(current_note)) {
             if (Math.abs(previous_note - current_note) < 0.5) {
-                notes.addFirst(new Float(current_note));
+                notes.add(current_note);
                 goto_valid_note = current_note;
             } else {
-                notes.addFirst(Float.NaN);
+                notes.add(Float.NaN);
             }
         } else {
-            notes.addFirst(Float.NaN);
+            notes.add(Float.NaN);
         }
 
         previous_note = current_note;
@@ -278,7 +506,7 @@ public class SlidingNotesView extends View {
             goto_note = Math.max(0.0f, base_note-4);
         }
 
-        invalidate();
+        requestRender();
     }
 
 }
@@ -0,0 +1,122 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.nio.ByteBuffer;
+
+// Harmonic tone with a 1/k spectrum, optionally paced at the real time rate
+// of a microphone.
+public class SyntheticSampleSource implements SampleSource {
+
+    private final int rate;
+    private final double frequency;
+    private final int harmonics;
+    private final double amplitude;
+    private final long length;
+    private final boolean realTime;
+
+    private long position;
+    private long startTime;
+    private short[] scratch = new short[0];
+
+    // length in samples, negative for an endless signal.
+    public SyntheticSampleSource(int rate, double frequency, int harmonics, double amplitude, long length, boolean realTime) {
+        this.rate = rate;
+        this.frequency = frequency;
+        this.harmonics = harmonics;
+        this.amplitude = amplitude;
+        this.length = length;
+        this.realTime = realTime;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return rate;
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return realTime;
+    }
+
+    @Override
+    public void start() {
+        position = 0;
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    public int read(short[] data, int offset, int length, boolean blocking) {
+        if (!blocking)
+            return 0;
+
+        if (this.length >= 0)
+            length = (int) Math.min(length, this.length - position);
+
+        if (realTime) {
+            long due = startTime + (position + length) * 1000000000L / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+
+        double norm = 0.0;
+        for (int k = 1; k <= harmonics; ++k)
+            norm += 1.0 / k;
+        double scale = amplitude * 32767.0 / norm;
+
+        for (int i = 0; i < length; ++i) {
+            double phase = 2.0 * Math.PI * frequency * (position + i) / rate;
+            double v = 0.0;
+            for (int k = 1; k <= harmonics; ++k)
+                v += Math.sin(k * phase) / k;
+            data[offset + i] = (short) Math.round(v * scale);
+        }
+
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        if (scratch.length < sizeInBytes / 2)
+            scratch = new short[sizeInBytes / 2];
+        return FileSampleSource.readIntoBuffer(this, buffer, sizeInBytes, scratch);
+    }
+
+    @Override
+    public long getCaptureTime(long position) {
+        if (!realTime)
+            return -1;
+        return startTime + position * 1000000000L / rate;
+    }
+
+    @Override
+    public void release() {
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import java.nio.ByteBuffer;
+
+// Owner of one native tone_handler, not thread safe, each thread that analyse
+// samples need its own instance. Only prepare may be called from another
+// thread, initSampleRate, prepare and dispose are serialized on the instance.
+public class ToneAnalyzer implements FixedHopCapture.Analyzer {
+
+    // Layout of the result of analyze(), keep in sync with native-lib.cpp
+    static final int ANALYZE_FREQUENCY = 0;
+    static final int ANALYZE_ENERGY = 1;
+    static final int ANALYZE_CONFIDENCE = 2;
+    static final int ANALYZE_LEVEL_DB = 3; // RMS level in dB relative to full scale
+    static final int ANALYZE_RESULT_SIZE = 4;
+
+    // Used to load the 'native-lib' library on application startup.
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private long opaqueNativeHandle; // store the pointer
+    private int length_of_sample;
+    private int sample_rate;
+
+    public ToneAnalyzer() {
+        this.opaqueNativeHandle = 0;
+    }
+
+    // Length in samples of the analysis window, valid after initSampleRate.
+    public int getSampleLength() {
+        return length_of_sample;
+    }
+
+    // Rate of the last successful initSampleRate, 0 before.
+    public int getSampleRate() {
+        return sample_rate;
+    }
+
+    public synchronized int initSampleRate(int sampleRate, AnalysisConfig config) {
+        if (opaqueNativeHandle == 0)
+            opaqueNativeHandle = nativeCreate();
+        int err = nativeInitSampleRate(opaqueNativeHandle, sampleRate, config.interpolationFactor, config.windowSigmaHz);
+        length_of_sample = nativeSampleLength(opaqueNativeHandle);
+        if (err >= 0)
+            sample_rate = sampleRate;
+        return err;
+    }
+
+    // Build the FFT length and window of config at the current sample rate on
+    // the calling thread, swapPending switch to it. On error, or before
+    // initSampleRate, nothing is changed.
+    public synchronized int prepare(AnalysisConfig config) {
+        if (opaqueNativeHandle == 0 || sample_rate <= 0)
+            return -1;
+        return nativePrepare(opaqueNativeHandle, config.interpolationFactor, config.windowSigmaHz);
+    }
+
+    // Called between two frames by the analysing thread, switch to the last
+    // prepared window if any, a registered capture buffer stay valid. Return
+    // the window length.
+    public int swapPending() {
+        length_of_sample = nativeSwapPending(opaqueNativeHandle);
+        return length_of_sample;
+    }
+
+    // Fill out with frequency, energy, confidence and level, see ANALYZE_* for the layout.
+    public void analyze(short[] arr, int offset, int length, float[] out) {
+        nativeAnalyze(opaqueNativeHandle, arr, offset, length, out, System.nanoTime());
+    }
+
+    // Register a direct buffer of capacity shorts used as a ring by analyzeCapture.
+    @Override
+    public int registerCaptureBuffer(ByteBuffer buffer, int capacity) {
+        return nativeRegisterCaptureBuffer(opaqueNativeHandle, buffer, capacity);
+    }
+
+    // Same as analyze for the window ending at the sample end of the capture ring,
+    // the spectral analysis only run when a cheaper estimate see a note change.
+    @Override
+    public void analyzeCapture(int end, float[] out) {
+        nativeAnalyzeCapture(opaqueNativeHandle, end, out, System.nanoTime());
+    }
+
+    // Move the native stage histograms into out, PipelineMetrics.HISTOGRAM_SIZE
+    // counts, zero before initSampleRate.
+    public void drainMetrics(long[] out) {
+        if (opaqueNativeHandle == 0) {
+            java.util.Arrays.fill(out, 0);
+            return;
+        }
+        nativeDrainMetrics(opaqueNativeHandle, out);
+    }
+
+    public synchronized void dispose() {
+        if (opaqueNativeHandle != 0)
+            nativeDispose(opaqueNativeHandle);
+        opaqueNativeHandle = 0;
+        sample_rate = 0;
+    }
+
+    // Bound with RegisterNatives in JNI_OnLoad, the handle is the native context.
+    private static native long nativeCreate();
+    private static native int nativeInitSampleRate(long handle, int sampleRate, int interpolationFactor, double sigmaHz);
+    private static native int nativePrepare(long handle, int interpolationFactor, double sigmaHz);
+    private static native int nativeSwapPending(long handle);
+    private static native int nativeSampleLength(long handle);
+    private static native void nativeAnalyze(long handle, short[] arr, int offset, int length, float[] out, long callTime);
+    private static native int nativeRegisterCaptureBuffer(long handle, ByteBuffer buffer, int capacity);
+    private static native void nativeAnalyzeCapture(long handle, int end, float[] out, long callTime);
+    private static native void nativeDrainMetrics(long handle, long[] out);
+    private static native void nativeDispose(long handle);
+
+}
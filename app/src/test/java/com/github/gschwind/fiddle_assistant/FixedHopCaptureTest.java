@@ -0,0 +1,217 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FixedHopCaptureTest {
+
+    private static final int RATE = 44100;
+    private static final int CAPACITY = 4096;
+
+    // Sample n of the stream is n modulo 2^15, the analyzer can tell which
+    // sample end a window.
+    private static short sampleAt(long position) {
+        return (short) (position & 0x7fff);
+    }
+
+    // Return at most the next of sizes samples per read, until length samples
+    // were read. The last sample of each read was captured lag ns before the
+    // read returned, or the capture time is unknown when lag is negative.
+    private static class ScriptedSource implements SampleSource {
+        private final int[] sizes;
+        private final long length;
+        private final long lag;
+        private long position;
+        private int reads;
+        private long last_capture = -1;
+        long last_asked = -1;
+
+        ScriptedSource(long length, long lag, int... sizes) {
+            this.sizes = sizes;
+            this.length = length;
+            this.lag = lag;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return RATE;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return true;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public int read(short[] data, int offset, int length, boolean blocking) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int sizeInBytes) {
+            int n = (int) Math.min(Math.min(sizeInBytes/2, sizes[reads++ % sizes.length]), length - position);
+            ByteBuffer out = buffer.duplicate().order(ByteOrder.nativeOrder());
+            for (int i = 0; i < n; ++i)
+                out.putShort(i*2, sampleAt(position++));
+            last_capture = System.nanoTime() - lag;
+            return n*2;
+        }
+
+        @Override
+        public long getCaptureTime(long position) {
+            last_asked = position;
+            return lag < 0 ? -1 : last_capture;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    // Record the stream position of the last sample of every analysed window.
+    private static class RecordingAnalyzer implements FixedHopCapture.Analyzer {
+        private ByteBuffer ring;
+        private int capacity;
+        final List<Integer> ends = new ArrayList<>();
+        final List<Short> last_samples = new ArrayList<>();
+
+        @Override
+        public int registerCaptureBuffer(ByteBuffer buffer, int capacity) {
+            this.ring = buffer;
+            this.capacity = capacity;
+            return 0;
+        }
+
+        @Override
+        public void analyzeCapture(int end, float[] out) {
+            ends.add(end);
+            last_samples.add(ring.getShort(((end + capacity - 1) % capacity)*2));
+        }
+    }
+
+    private static FixedHopCapture.Client hops(final int... hops) {
+        return new FixedHopCapture.Client() {
+            private int frame;
+
+            @Override
+            public int onFrame() {
+                return frame < hops.length ? hops[frame++] : 0;
+            }
+        };
+    }
+
+    @Test
+    public void oneFramePerHopWhateverTheReadSizes() throws IOException {
+        int first = 2048;
+        int hop = 441;
+        int frames = 100;
+        int[] script = new int[frames - 1];
+        Arrays.fill(script, hop);
+
+        ScriptedSource source = new ScriptedSource(Long.MAX_VALUE, 0, 1, 37, 480, 1000, 3, 4096);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FixedHopCapture capture = new FixedHopCapture(source, analyzer, CAPACITY);
+
+        assertEquals(frames, capture.run(first, new float[ToneAnalyzer.ANALYZE_RESULT_SIZE], hops(script)));
+        assertEquals(first + (frames - 1L)*hop, capture.getSamplesRead());
+
+        // every window end exactly one hop after the previous one, the ring wrap
+        // a few times.
+        for (int i = 0; i < frames; ++i) {
+            long position = first + (long) i*hop;
+            assertEquals("frame " + i, (int) (position % CAPACITY), (int) analyzer.ends.get(i));
+            assertEquals("frame " + i, sampleAt(position - 1), (short) analyzer.last_samples.get(i));
+        }
+    }
+
+    @Test
+    public void followTheHopOfTheClient() throws IOException {
+        ScriptedSource source = new ScriptedSource(Long.MAX_VALUE, 0, 333);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FixedHopCapture capture = new FixedHopCapture(source, analyzer, CAPACITY);
+
+        int[] script = {100, 1470, 1, 2205, 441};
+        assertEquals(script.length + 1, capture.run(1000, new float[ToneAnalyzer.ANALYZE_RESULT_SIZE], hops(script)));
+
+        long position = 1000;
+        assertEquals(sampleAt(position - 1), (short) analyzer.last_samples.get(0));
+        for (int i = 0; i < script.length; ++i) {
+            position += script[i];
+            assertEquals((int) (position % CAPACITY), (int) analyzer.ends.get(i + 1));
+            assertEquals(sampleAt(position - 1), (short) analyzer.last_samples.get(i + 1));
+        }
+    }
+
+    @Test
+    public void stopAtTheEndOfTheStream() throws IOException {
+        ScriptedSource source = new ScriptedSource(1000 + 3*441 + 200, 0, 512);
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FixedHopCapture capture = new FixedHopCapture(source, analyzer, CAPACITY);
+
+        // the partial last hop is not analysed.
+        assertEquals(4, capture.run(1000, new float[ToneAnalyzer.ANALYZE_RESULT_SIZE], hops(441, 441, 441, 441, 441)));
+    }
+
+    @Test
+    public void latencyFromTheCaptureOfTheLastSample() throws IOException {
+        long lag = 5000000L;
+        ScriptedSource source = new ScriptedSource(Long.MAX_VALUE, lag, 480);
+        FixedHopCapture capture = new FixedHopCapture(source, new RecordingAnalyzer(), CAPACITY);
+
+        assertEquals(-1, capture.getLatency());
+        assertEquals(-1, capture.getMeanLatency());
+
+        capture.run(2048, new float[ToneAnalyzer.ANALYZE_RESULT_SIZE], hops(441, 441));
+        assertEquals(2048 + 2*441 - 1, source.last_asked);
+
+        // the lag plus the time spent from the read to the end of the frame.
+        long latency = capture.getLatency();
+        assertTrue("latency " + latency, latency >= lag && latency < lag + 1000000000L);
+        long mean = capture.getMeanLatency();
+        assertTrue("mean latency " + mean, mean >= lag && mean < lag + 1000000000L);
+    }
+
+    @Test
+    public void latencyFromTheReadWithoutCaptureTime() throws IOException {
+        ScriptedSource source = new ScriptedSource(Long.MAX_VALUE, -1, 480);
+        FixedHopCapture capture = new FixedHopCapture(source, new RecordingAnalyzer(), CAPACITY);
+
+        capture.run(2048, new float[ToneAnalyzer.ANALYZE_RESULT_SIZE], hops(441));
+        long latency = capture.getLatency();
+        assertTrue("latency " + latency, latency >= 0 && latency < 1000000000L);
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+// Check that the per frame analysis never allocate once init_sample_rate
+// returned: operator new, and malloc on glibc, are replaced by counters.
+
+#include <atomic>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <new>
+#include <vector>
+
+#include "tone_handler.hxx"
+#include "pitch_engine.hxx"
+
+static std::atomic<long> allocations{0};
+
+void * operator new(std::size_t size)
+{
+	allocations.fetch_add(1, std::memory_order_relaxed);
+	if (void * p = std::malloc(size > 0 ? size : 1))
+		return p;
+	throw std::bad_alloc();
+}
+
+void * operator new[](std::size_t size)
+{
+	return operator new(size);
+}
+
+void * operator new(std::size_t size, std::nothrow_t const &) noexcept
+{
+	allocations.fetch_add(1, std::memory_order_relaxed);
+	return std::malloc(size > 0 ? size : 1);
+}
+
+void * operator new[](std::size_t size, std::nothrow_t const & tag) noexcept
+{
+	return operator new(size, tag);
+}
+
+void operator delete(void * p) noexcept
+{
+	std::free(p);
+}
+
+void operator delete[](void * p) noexcept
+{
+	std::free(p);
+}
+
+void operator delete(void * p, std::size_t) noexcept
+{
+	std::free(p);
+}
+
+void operator delete[](void * p, std::size_t) noexcept
+{
+	std::free(p);
+}
+
+#ifdef __GLIBC__
+// operator new above count before it call malloc, thus a new is counted twice,
+// which is fine to tell whether anything allocated at all.
+extern "C" void * __libc_malloc(std::size_t size);
+extern "C" void * __libc_calloc(std::size_t count, std::size_t size);
+extern "C" void * __libc_realloc(void * p, std::size_t size);
+
+extern "C" void * malloc(std::size_t size)
+{
+	allocations.fetch_add(1, std::memory_order_relaxed);
+	return __libc_malloc(size);
+}
+
+extern "C" void * calloc(std::size_t count, std::size_t size)
+{
+	allocations.fetch_add(1, std::memory_order_relaxed);
+	return __libc_calloc(count, size);
+}
+
+extern "C" void * realloc(void * p, std::size_t size)
+{
+	allocations.fetch_add(1, std::memory_order_relaxed);
+	return __libc_realloc(p, size);
+}
+#endif
+
+using handler_t = tone_handler<float>;
+
+// Same list as MicSampleSource.getValidSampleRates
+static int const sample_rates[] = {48000, 44100, 22050, 16000, 11025, 8000};
+
+// Same value as AnalysisConfig.DEFAULT.interpolationFactor
+static int const interpolation_factor = 2;
+
+// Frames analysed by each path.
+static int const frame_count = 64;
+
+static int failures = 0;
+
+// A few notes one after the other with a bit of noise, so that the tiered
+// engine run both its coarse and its spectral path.
+static std::vector<std::int16_t> make_signal(int rate, std::size_t len)
+{
+	static double const notes[] = {196.0, 440.0, 659.26, 1318.51};
+	std::vector<std::int16_t> data(len);
+	std::uint32_t seed = 1;
+	for (std::size_t i = 0; i < len; ++i) {
+		double f = notes[(i*4/len)%4];
+		double x = 0.0;
+		for (int h = 1; h <= 6; ++h) {
+			if (h*f < rate/2)
+				x += 6000.0/h*std::sin(2.0*M_PI*f*h*i/rate);
+		}
+		seed = seed*1664525u+1013904223u;
+		x += static_cast<int>(seed>>20)-2048;
+		data[i] = static_cast<std::int16_t>(x);
+	}
+	return data;
+}
+
+static void check(char const * path, int rate, long count)
+{
+	std::printf("%-13s %6d Hz: %ld allocation(s)\n", path, rate, count);
+	if (count != 0) {
+		++failures;
+		std::printf("FAIL %s %d Hz: %ld allocation(s) over %d frames\n", path, rate, count, frame_count);
+	}
+}
+
+static int * volatile probe;
+
+int main()
+{
+	// make sure the counters are live, else every check would pass.
+	long before = allocations.load();
+	probe = new int[16];
+	delete[] probe;
+	if (allocations.load() == before) {
+		std::printf("FAIL the allocations are not counted\n");
+		return 1;
+	}
+
+	for (int rate : sample_rates) {
+		handler_t handler;
+		pitch_engine<float> engine{handler};
+		handler.init_sample_rate(rate, interpolation_factor);
+		engine.init();
+
+		std::size_t length = handler.sample_length;
+		std::size_t hop = rate/30;
+		auto data = make_signal(rate, length+frame_count*hop);
+		handler_t::analysis_result result;
+		double sink = 0.0;
+
+		before = allocations.load();
+		for (int i = 0; i < frame_count; ++i)
+			sink += handler.compute_freq(&data[i*hop], length);
+		check("compute_freq", rate, allocations.load()-before);
+
+		before = allocations.load();
+		for (int i = 0; i < frame_count; ++i) {
+			handler.analyze(&data[i*hop], length, result);
+			sink += result.frequency;
+		}
+		check("analyze", rate, allocations.load()-before);
+
+		// the start of data used as a ring, the windows wrap every few frames.
+		std::size_t capacity = length+frame_count/4*hop;
+		before = allocations.load();
+		std::size_t last = 0;
+		for (int i = 0; i < frame_count; ++i) {
+			std::size_t end = (length+i*hop)%capacity;
+			handler.track_ring(data.data(), capacity, last, end);
+			handler.analyze_ring(data.data(), capacity, end, result);
+			last = end;
+			sink += result.frequency;
+		}
+		check("analyze_ring", rate, allocations.load()-before);
+
+		before = allocations.load();
+		for (int i = 0; i < frame_count; ++i) {
+			std::size_t end = (length+i*hop)%capacity;
+			handler.track_ring(data.data(), capacity, last, end);
+			engine.analyze_ring(data.data(), capacity, end, result);
+			last = end;
+			sink += result.frequency;
+		}
+		check("pitch_engine", rate, allocations.load()-before);
+
+		if (sink == 42.0)
+			std::printf(" ");
+	}
+
+	if (failures) {
+		std::printf("%d failure(s)\n", failures);
+		return 1;
+	}
+	std::printf("all checks passed\n");
+	return 0;
+}
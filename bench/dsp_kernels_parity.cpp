@@ -0,0 +1,160 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+// Check the SIMD kernels of dsp_kernels.hxx against their scalar loops, over
+// every length up to a few vectors and at every misalignment of the data.
+
+#include <cmath>
+#include <complex>
+#include <cstdint>
+#include <cstdio>
+#include <random>
+#include <vector>
+
+#include "dsp_kernels.hxx"
+
+#if FIDDLE_SIMD_NEON
+static char const * const kernels = "NEON";
+#elif FIDDLE_SIMD_SSE2
+static char const * const kernels = "SSE2";
+#else
+static char const * const kernels = "scalar";
+#endif
+
+// Relative difference allowed, the float products may be rounded in a
+// different order.
+static double const tolerance = 1e-6;
+
+// Lengths up to a few vectors and a couple of window sizes.
+static std::size_t const max_short_length = 67;
+static std::size_t const long_lengths[] = {1023, 2205, 4801};
+
+// The data start that many elements after a 16 bytes boundary.
+static std::size_t const max_misalignment = 7;
+
+static int failures = 0;
+
+static bool close(double a, double b)
+{
+	return std::fabs(a-b) <= tolerance*std::max(1.0, std::max(std::fabs(a), std::fabs(b)));
+}
+
+static void fail(char const * kernel, std::size_t len, std::size_t misalignment, char const * what)
+{
+	if (++failures <= 20)
+		std::printf("FAIL %s len %zu misalignment %zu: %s\n", kernel, len, misalignment, what);
+}
+
+struct inputs {
+	std::vector<std::int16_t> samples;
+	std::vector<float> window;
+	std::vector<std::complex<float>> spectrum;
+
+	inputs(std::size_t len)
+	{
+		std::mt19937 gen(7);
+		std::uniform_int_distribution<int> pcm(-32768, 32767);
+		std::uniform_real_distribution<float> real(-1000.0f, 1000.0f);
+		std::size_t n = len+max_misalignment;
+		samples.resize(n);
+		window.resize(n);
+		spectrum.resize(n);
+		for (std::size_t i = 0; i < n; ++i) {
+			// the extremes of the 16 bits range hit the overflow of the madd sums.
+			samples[i] = i%5 == 0 ? (i%2 ? -32768 : 32767) : pcm(gen);
+			window[i] = std::exp(-0.5*std::pow((i-n/2.0)/(n/6.0+1.0), 2.0));
+			spectrum[i] = std::complex<float>(real(gen), real(gen));
+		}
+	}
+};
+
+static void check(std::size_t len, std::size_t misalignment, inputs const & in)
+{
+	std::int16_t const * data = &in.samples[misalignment];
+	float const * window = &in.window[misalignment];
+	std::complex<float> const * spectrum = &in.spectrum[misalignment];
+
+	// the output are misaligned too, with a guard after the end.
+	std::vector<float> simd(len+max_misalignment+1, -1.0f);
+	std::vector<float> scalar(len+max_misalignment+1, -1.0f);
+	float * simd_out = &simd[misalignment];
+	float * scalar_out = &scalar[misalignment];
+
+	double s1 = dsp::window_reversed(data, len, window, simd_out);
+	double s2 = dsp::window_reversed<std::int16_t, float>(data, len, window, scalar_out);
+	if (s1 != s2)
+		fail("window_reversed", len, misalignment, "sum of squares");
+	for (std::size_t i = 0; i < simd.size(); ++i) {
+		if (!close(simd[i], scalar[i])) {
+			fail("window_reversed", len, misalignment, "windowed samples");
+			break;
+		}
+	}
+
+	std::fill(simd.begin(), simd.end(), -1.0f);
+	dsp::reverse_window(data, len, window, simd_out);
+	for (std::size_t i = 0; i < simd.size(); ++i) {
+		if (!close(simd[i], scalar[i])) {
+			fail("reverse_window", len, misalignment, "windowed samples");
+			break;
+		}
+	}
+
+	if (dsp::sum_of_squares(data, len) != dsp::sum_of_squares<std::int16_t>(data, len))
+		fail("sum_of_squares", len, misalignment, "sum");
+
+	std::fill(simd.begin(), simd.end(), -1.0f);
+	std::fill(scalar.begin(), scalar.end(), -1.0f);
+	dsp::squared_magnitude(spectrum, simd_out, len);
+	dsp::squared_magnitude<float>(spectrum, scalar_out, len);
+	for (std::size_t i = 0; i < simd.size(); ++i) {
+		if (!close(simd[i], scalar[i])) {
+			fail("squared_magnitude", len, misalignment, "magnitudes");
+			break;
+		}
+	}
+}
+
+int main()
+{
+	std::printf("kernels: %s\n", kernels);
+
+	std::vector<std::size_t> lengths;
+	for (std::size_t len = 0; len <= max_short_length; ++len)
+		lengths.push_back(len);
+	for (std::size_t len : long_lengths)
+		lengths.push_back(len);
+
+	int count = 0;
+	for (std::size_t len : lengths) {
+		inputs in(len);
+		for (std::size_t misalignment = 0; misalignment <= max_misalignment; ++misalignment) {
+			check(len, misalignment, in);
+			++count;
+		}
+	}
+
+	if (failures) {
+		std::printf("%d failure(s) over %d cases\n", failures, count);
+		return 1;
+	}
+	std::printf("all %d cases passed\n", count);
+	return 0;
+}
@@ -0,0 +1,116 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+// Check that the spectrum of the real input FFT of tone_handler match the
+// squared magnitudes of a full length complex FFT of the same windowed
+// samples, as computed before the real input transform.
+
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <random>
+#include <vector>
+
+#include "tone_handler.hxx"
+
+using handler_t = tone_handler<float>;
+using cpx_t = kissfft<float>::cpx_t;
+
+// Same list as MicSampleSource.getValidSampleRates
+static int const sample_rates[] = {48000, 44100, 22050, 16000, 11025, 8000};
+
+// Largest difference allowed between the two spectra, relative to their peak.
+static double const tolerance = 1e-5;
+
+static int failures = 0;
+
+static std::vector<std::int16_t> random_signal(std::size_t len)
+{
+	std::mt19937 gen(42);
+	std::uniform_int_distribution<int> uniform(-32768, 32767);
+	std::vector<std::int16_t> data(len);
+	for (auto & x: data)
+		x = uniform(gen);
+	return data;
+}
+
+static std::vector<std::int16_t> tone_signal(int rate, std::size_t len)
+{
+	std::vector<std::int16_t> data(len);
+	for (std::size_t i = 0; i < len; ++i) {
+		double x = 0.0;
+		for (int h = 1; h <= 6; ++h) {
+			if (h*440.0 < rate/2)
+				x += 6000.0/h*std::sin(2.0*M_PI*440.0*h*i/rate);
+		}
+		data[i] = static_cast<std::int16_t>(x);
+	}
+	return data;
+}
+
+static void check(int rate, int interpolation_factor, char const * name, std::vector<std::int16_t> const & data)
+{
+	handler_t handler;
+	handler.init_sample_rate(rate, interpolation_factor);
+	int n = handler.g_fft_n;
+
+	handler.load_window(data.data(), handler.sample_length);
+
+	// the previous path, a complex transform of g_fft_n real samples.
+	std::vector<cpx_t> in(n), out(n);
+	for (int i = 0; i < n; ++i)
+		in[i] = cpx_t(handler.g_fft_ibuffer[i], 0.0f);
+	kissfft<float> plan(n, false);
+	plan.transform(in.data(), out.data());
+
+	handler.spectrum_frequency();
+
+	double peak = 0.0;
+	for (int i = 1; i < n/2; ++i)
+		peak = std::max<double>(peak, std::norm(out[i]));
+
+	double error = 0.0;
+	for (int i = 1; i < n/2; ++i)
+		error = std::max(error, std::fabs(handler.spectrum[i]-std::norm(out[i]))/peak);
+
+	std::printf("%-6s %6d Hz x%d fft_n %5d: max error %.2e\n", name, rate, interpolation_factor, n, error);
+	if (!(error <= tolerance)) {
+		++failures;
+		std::printf("FAIL %s %d Hz x%d: %.2e (max %.2e)\n", name, rate, interpolation_factor, error, tolerance);
+	}
+}
+
+int main()
+{
+	for (int rate : sample_rates) {
+		for (int interpolation_factor : {1, 2, 4}) {
+			std::size_t len = rate;
+			check(rate, interpolation_factor, "random", random_signal(len));
+			check(rate, interpolation_factor, "tone", tone_signal(rate, len));
+		}
+	}
+
+	if (failures) {
+		std::printf("%d failure(s)\n", failures);
+		return 1;
+	}
+	std::printf("all checks passed\n");
+	return 0;
+}
@@ -0,0 +1,61 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Note conversion done by AudioThread for every frame, and its inverse.
+@State(Scope.Thread)
+public class AnalysisConfigBenchmark {
+
+    private final AnalysisConfig config = AnalysisConfig.DEFAULT.withReferencePitch(442.0);
+    private final double[] frequencies = new double[256];
+    private final double[] notes = new double[256];
+
+    @Setup
+    public void setup() {
+        // G3 to A6, as the regression harness.
+        for (int i = 0; i < frequencies.length; ++i) {
+            frequencies[i] = 196.0 * Math.pow(2.0, 3.2 * i / frequencies.length);
+            notes[i] = config.frequencyToNote(frequencies[i]);
+        }
+    }
+
+    @Benchmark
+    public double frequencyToNote() {
+        double sum = 0.0;
+        for (double f : frequencies)
+            sum += config.frequencyToNote(f);
+        return sum;
+    }
+
+    @Benchmark
+    public double noteToFrequency() {
+        double sum = 0.0;
+        for (double n : notes)
+            sum += config.noteToFrequency(n);
+        return sum;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// One record offered by AudioThread per frame, drained by the UI thread.
+public class AnalysisQueueBenchmark {
+
+    // Same capacity as MainActivity.
+    private static final int CAPACITY = 64;
+
+    @State(Scope.Thread)
+    public static class Single {
+        final AnalysisQueue queue = new AnalysisQueue(CAPACITY);
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        final AnalysisQueue queue = new AnalysisQueue(CAPACITY);
+    }
+
+    // Offer and drain on the same thread, the cost of the queue alone.
+    @Benchmark
+    public float offerDrain(Single s) {
+        AnalysisQueue queue = s.queue;
+        queue.offer(1L, 440.0f, 60.0f, 1.0f, 0.9f);
+        float f = 0.0f;
+        int count = queue.acquire();
+        for (int k = 0; k < count; ++k)
+            f += queue.getFrequency(k) + queue.getNote(k) + queue.getConfidence(k);
+        queue.release(count);
+        return f;
+    }
+
+    // The producer and the consumer on their own threads, as in the app.
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean offer(Shared s) {
+        return s.queue.offer(1L, 440.0f, 60.0f, 1.0f, 0.9f);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public float drain(Shared s) {
+        AnalysisQueue queue = s.queue;
+        float f = 0.0f;
+        int count = queue.acquire();
+        for (int k = 0; k < count; ++k)
+            f += queue.getFrequency(k);
+        queue.release(count);
+        return f;
+    }
+
+}
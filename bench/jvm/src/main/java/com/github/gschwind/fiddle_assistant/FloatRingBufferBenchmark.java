@@ -0,0 +1,62 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+package com.github.gschwind.fiddle_assistant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// The SlidingNotesView history, about one value per 2 dp of its width, one
+// add per analysed frame and a walk over every value per drawn frame.
+@State(Scope.Thread)
+public class FloatRingBufferBenchmark {
+
+    @Param({"256", "1024"})
+    public int capacity;
+
+    private FloatRingBuffer ring;
+    private float next;
+
+    @Setup
+    public void setup() {
+        ring = new FloatRingBuffer(capacity);
+        for (int i = 0; i < capacity; ++i)
+            ring.add(i);
+    }
+
+    @Benchmark
+    public void add() {
+        ring.add(next);
+        next += 1.0f;
+    }
+
+    @Benchmark
+    public float walk() {
+        float sum = 0.0f;
+        int size = ring.size();
+        for (int i = 0; i < size; ++i)
+            sum += ring.get(i);
+        return sum;
+    }
+
+}
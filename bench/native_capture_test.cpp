@@ -0,0 +1,239 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+// Run native_capture on the fake backend as fast as it can go, and check
+// the frequency of the results, that there is one result per hop, and that a
+// configure while running switch the window between two frames.
+
+#include <atomic>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <vector>
+
+#include "native_capture.hxx"
+
+// Same values as AnalysisConfig.DEFAULT
+static int const frame_rate = 30;
+static int const interpolation_factor = 2;
+static double const sigma_hz = 20.0;
+
+// Window switched to by configure, twice as long.
+static double const configured_sigma_hz = 10.0;
+
+// Largest error allowed on a clean tone, as the capture path of
+// pitch_regression.
+static double const max_error_cents = 5.0;
+
+// Relative deviation of the energy of a frame from the one of its window.
+static double const energy_tolerance = 0.05;
+
+static std::size_t const block_size = 192;
+
+static int failures = 0;
+
+static void fail(char const * name, char const * what)
+{
+	++failures;
+	std::printf("FAIL %s: %s\n", name, what);
+}
+
+// The fake backend with the count of samples handed to the capture.
+struct counted_tone {
+	fake_backend::generator tone;
+	std::atomic<std::uint64_t> generated{0};
+	fake_backend backend;
+
+	counted_tone(int rate, double frequency) :
+		tone(fake_backend::tone(rate, frequency)),
+		backend{[this](std::int16_t * data, std::size_t count, std::uint64_t position) {
+			tone(data, count, position);
+			generated.store(position+count, std::memory_order_relaxed);
+		}, rate, block_size, false} { }
+};
+
+static double cents(double frequency, double expected)
+{
+	return 1200.0*std::log2(frequency/expected);
+}
+
+static int window_length(int rate, double sigma)
+{
+	tone_handler<float> handler;
+	handler.init_sample_rate(rate, interpolation_factor, sigma);
+	return handler.sample_length;
+}
+
+// Frames of a capture of total samples, the first one after the window.
+static std::uint64_t expected_frames(std::uint64_t total, int length, int hop)
+{
+	return total < static_cast<std::uint64_t>(length) ? 0 : 1+(total-length)/hop;
+}
+
+static void check_tone(int rate, double frequency)
+{
+	char name[64];
+	std::snprintf(name, sizeof(name), "%d Hz tone at %d Hz", static_cast<int>(frequency), rate);
+
+	counted_tone source{rate, frequency};
+	native_capture capture;
+	if (capture.start(&source.backend, rate, frame_rate, interpolation_factor, sigma_hz) != rate) {
+		fail(name, "start failed");
+		return;
+	}
+
+	std::vector<capture_result> results(64);
+	std::uint64_t count = 0;
+	double worst = 0.0;
+	while (count < 2000) {
+		int n = capture.poll(results.data(), results.size());
+		for (int i = 0; i < n; ++i)
+			worst = std::max(worst, std::fabs(cents(results[i].frequency, frequency)));
+		count += n;
+	}
+	capture.stop();
+	for (int n; (n = capture.poll(results.data(), results.size())) > 0; count += n) {
+		for (int i = 0; i < n; ++i)
+			worst = std::max(worst, std::fabs(cents(results[i].frequency, frequency)));
+	}
+
+	std::uint64_t dropped = capture.dropped.load();
+	std::uint64_t expected = expected_frames(source.generated.load(), window_length(rate, sigma_hz), rate/frame_rate);
+	std::printf("%-28s %6llu frames, %llu dropped, max error %.2f cents\n", name,
+			static_cast<unsigned long long>(count), static_cast<unsigned long long>(dropped), worst);
+
+	if (count+dropped != expected)
+		fail(name, "not one result per hop");
+	if (!(worst <= max_error_cents))
+		fail(name, "frequency error");
+}
+
+// Classify the frames by the energy of their window, which grow with its
+// length: -1 when it match none of the two.
+static int window_of(double energy, double energy_a, double energy_b)
+{
+	if (std::fabs(energy/energy_a-1.0) <= energy_tolerance)
+		return 0;
+	if (std::fabs(energy/energy_b-1.0) <= energy_tolerance)
+		return 1;
+	return -1;
+}
+
+static void check_configure(int rate, double frequency)
+{
+	char const * name = "configure while running";
+
+	counted_tone source{rate, frequency};
+	native_capture capture;
+	if (capture.start(&source.backend, rate, frame_rate, interpolation_factor, sigma_hz) != rate) {
+		fail(name, "start failed");
+		return;
+	}
+
+	int length_a = window_length(rate, sigma_hz);
+	int length_b = window_length(rate, configured_sigma_hz);
+	double energy_a = 0.0;
+	double energy_b = 0.0;
+
+	// window expected from the frames on: A, then B once configured, then A
+	// again once a B frame was seen.
+	int phase = 0;
+	int window = 0;
+	int switches = 0;
+	bool retired_collected = true;
+	std::uint64_t count = 0;
+	std::vector<capture_result> results(64);
+
+	auto check = [&](capture_result const & r) {
+		if (energy_a == 0.0) {
+			energy_a = r.energy;
+			energy_b = energy_a*length_b/length_a;
+		}
+		int w = window_of(r.energy, energy_a, energy_b);
+		if (w < 0) {
+			fail(name, "the energy of a frame match neither window");
+			return;
+		}
+		if (w != window) {
+			// a switch can only follow the matching configure.
+			if ((w == 1 && phase != 1) || (w == 0 && phase != 2))
+				fail(name, "the window changed before its configure");
+			++switches;
+			window = w;
+		}
+		if (std::fabs(cents(r.frequency, frequency)) > max_error_cents)
+			fail(name, "frequency error");
+	};
+
+	while (count < 3000) {
+		int n = capture.poll(results.data(), results.size());
+		for (int i = 0; i < n; ++i)
+			check(results[i]);
+		count += n;
+
+		if (phase == 0 && count >= 500) {
+			if (capture.configure(interpolation_factor, configured_sigma_hz) < 0)
+				fail(name, "configure failed");
+			phase = 1;
+		} else if (phase == 1 && window == 1) {
+			// the poll that returned the first frame of B may have run
+			// before its swap, the next one free the analysis of A.
+			capture.poll(results.data(), 0);
+			retired_collected = capture.analyses.retired.load() == nullptr;
+			if (capture.configure(interpolation_factor, sigma_hz) < 0)
+				fail(name, "configure failed");
+			phase = 2;
+		}
+	}
+	capture.stop();
+	for (int n; (n = capture.poll(results.data(), results.size())) > 0; count += n) {
+		for (int i = 0; i < n; ++i)
+			check(results[i]);
+	}
+
+	std::uint64_t dropped = capture.dropped.load();
+	std::uint64_t expected = expected_frames(source.generated.load(), length_a, rate/frame_rate);
+	std::printf("%-28s %6llu frames, %llu dropped, %d window switches\n", name,
+			static_cast<unsigned long long>(count), static_cast<unsigned long long>(dropped), switches);
+
+	if (count+dropped != expected)
+		fail(name, "not one result per hop");
+	if (switches != 2 || window != 0)
+		fail(name, "the configured windows were not both used");
+	if (!retired_collected)
+		fail(name, "the replaced analysis was not collected by poll");
+	if (capture.analyses.pending.load() != nullptr)
+		fail(name, "an analysis is still pending");
+}
+
+int main()
+{
+	check_tone(44100, 440.0);
+	check_tone(48000, 1318.51);
+	check_tone(8000, 196.0);
+	check_configure(44100, 440.0);
+
+	if (failures) {
+		std::printf("%d failure(s)\n", failures);
+		return 1;
+	}
+	std::printf("all checks passed\n");
+	return 0;
+}
@@ -0,0 +1,344 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+// Accuracy, latency and throughput regression harness of the pitch detection,
+// see README.md. Exit with a non zero status when a measure cross its
+// threshold.
+
+#include <chrono>
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <limits>
+#include <random>
+#include <string>
+#include <vector>
+
+#include "tone_handler.hxx"
+#include "pitch_engine.hxx"
+
+using handler_t = tone_handler<float>;
+
+// Same list as MicSampleSource.getValidSampleRates
+static int const sample_rates[] = {48000, 44100, 22050, 16000, 11025, 8000};
+
+// Same value as AnalysisConfig.DEFAULT.interpolationFactor
+static int const interpolation_factor = 2;
+
+// Open strings and a few stopped notes of a violin.
+static double const notes[] = {196.00, 293.66, 440.00, 659.26, 880.00, 1318.51, 1760.00};
+
+// Analysis rate of the accuracy and latency measures.
+static int const frames_per_second = 60;
+
+struct thresholds {
+	double max_cents;         // worst error on steady notes
+	double max_vibrato_cents; // mean error with a 25 cents vibrato
+	double max_noisy_cents;   // worst error with a 20 dB SNR
+	double max_miss_rate;     // frames without a pitch on a sustained note
+	double max_latency_ms;    // from a note onset to its first frame within 10 cents
+	double min_fps;           // frames analysed per second by one thread
+};
+
+// A few times the errors measured when the harness was written. The capture
+// path trade accuracy for speed with its coarse estimate, its limits are just
+// above its measured errors, 4.4, 2.3 and 4.5 cents at 8 kHz.
+static thresholds const compute_limits = {0.5, 1.0, 5.0, 0.02, 30.0, 500.0};
+static thresholds const capture_limits = {5.0, 3.0, 5.0, 0.02, 30.0, 500.0};
+
+struct signal_spec {
+	double frequency;
+	double vibrato_cents = 0.0;  // peak deviation
+	double vibrato_rate = 5.5;   // Hz
+	double snr_db = std::numeric_limits<double>::infinity();
+	double onset = 0.0;          // seconds of silence before the note
+};
+
+// Bowed string like harmonic stack, with a 1/h roll off and a weaker second
+// harmonic, at about -10 dB full scale.
+static std::vector<std::int16_t> make_signal(int rate, double duration, signal_spec const & spec,
+		std::vector<double> & frequency)
+{
+	std::size_t len = duration*rate;
+	std::vector<double> x(len, 0.0);
+	frequency.assign(len, spec.frequency);
+
+	double phase = 0.0;
+	std::size_t onset = spec.onset*rate;
+	for (std::size_t i = onset; i < len; ++i) {
+		double t = static_cast<double>(i-onset)/rate;
+		double f = spec.frequency*std::pow(2.0, spec.vibrato_cents/1200.0*std::sin(2.0*M_PI*spec.vibrato_rate*t));
+		frequency[i] = f;
+		double v = 0.0;
+		for (int h = 1; h <= 10 && h*f < rate/2; ++h)
+			v += (h == 2 ? 0.5 : 1.0)/h*std::sin(h*phase);
+		// 5 ms attack avoid a click.
+		x[i] = v*std::min(1.0, t/0.005);
+		phase += 2.0*M_PI*f/rate;
+	}
+
+	double power = 0.0;
+	for (std::size_t i = onset; i < len; ++i)
+		power += x[i]*x[i];
+	power /= std::max<std::size_t>(1, len-onset);
+
+	double noise = std::isinf(spec.snr_db) ? 0.0 : std::sqrt(power*std::pow(10.0, -spec.snr_db/10.0));
+	std::mt19937 gen(1234);
+	std::normal_distribution<double> normal(0.0, 1.0);
+
+	double gain = 0.3*32767.0/std::sqrt(2.0*power);
+	std::vector<std::int16_t> data(len);
+	for (std::size_t i = 0; i < len; ++i) {
+		double v = gain*(x[i]+noise*normal(gen));
+		data[i] = static_cast<std::int16_t>(std::max(-32768.0, std::min(32767.0, std::round(v))));
+	}
+	return data;
+}
+
+// Frequency of the frame ending at end, by the plain compute_freq path or by
+// the tiered capture path.
+struct engine {
+	char const * name;
+	handler_t handler;
+	pitch_engine<float> tiered{handler};
+	bool capture;
+	std::size_t last = 0;
+
+	engine(char const * name, int rate, bool capture) : name(name), capture(capture)
+	{
+		handler.init_sample_rate(rate, interpolation_factor);
+		tiered.init();
+	}
+
+	void reset()
+	{
+		handler.level.init(handler.sample_length);
+		tiered.reset();
+		last = 0;
+	}
+
+	double frame(std::vector<std::int16_t> & data, std::size_t end)
+	{
+		if (!capture)
+			return handler.compute_freq(&data[end-handler.sample_length], handler.sample_length);
+
+		handler_t::analysis_result result;
+		handler.track_ring(data.data(), data.size(), last, end % data.size());
+		last = end % data.size();
+		tiered.analyze_ring(data.data(), data.size(), end % data.size(), result);
+		return result.frequency;
+	}
+};
+
+struct accuracy {
+	double mean_cents = 0.0;
+	double max_cents = 0.0;
+	double miss_rate = 0.0;
+};
+
+static double cents(double estimate, double reference)
+{
+	return 1200.0*std::log2(estimate/reference);
+}
+
+// Error against the frequency at the center of each window, over one second
+// of a sustained note.
+static accuracy measure_accuracy(engine & e, int rate, signal_spec const & spec)
+{
+	std::vector<double> frequency;
+	auto data = make_signal(rate, 1.0, spec, frequency);
+	std::size_t length = e.handler.sample_length;
+	std::size_t hop = rate/frames_per_second;
+
+	accuracy acc;
+	int count = 0;
+	int missed = 0;
+	e.reset();
+	for (std::size_t end = length; end <= data.size(); end += hop) {
+		double f = e.frame(data, end);
+		++count;
+		if (std::isnan(f)) {
+			++missed;
+			continue;
+		}
+		double c = std::fabs(cents(f, frequency[end-length/2]));
+		acc.mean_cents += c;
+		acc.max_cents = std::max(acc.max_cents, c);
+	}
+	if (count > missed)
+		acc.mean_cents /= count-missed;
+	acc.miss_rate = static_cast<double>(missed)/count;
+	return acc;
+}
+
+// Time from the onset of a note after silence to the end of the first frame
+// within 10 cents, every 1 ms.
+static double measure_latency(engine & e, int rate, double note)
+{
+	signal_spec spec;
+	spec.frequency = note;
+	spec.onset = 0.2;
+	std::vector<double> frequency;
+	auto data = make_signal(rate, 0.6, spec, frequency);
+	std::size_t hop = std::max(1, rate/1000);
+	std::size_t onset = spec.onset*rate;
+
+	e.reset();
+	for (std::size_t end = e.handler.sample_length; end <= data.size(); end += hop) {
+		double f = e.frame(data, end);
+		if (end > onset && !std::isnan(f) && std::fabs(cents(f, note)) < 10.0)
+			return 1000.0*(end-onset)/rate;
+	}
+	return std::numeric_limits<double>::infinity();
+}
+
+// Frames per second of one thread on a sustained note.
+static double measure_fps(engine & e, int rate)
+{
+	signal_spec spec;
+	spec.frequency = 440.0;
+	std::vector<double> frequency;
+	auto data = make_signal(rate, 2.0, spec, frequency);
+	std::size_t hop = rate/frames_per_second;
+	std::size_t length = e.handler.sample_length;
+
+	using clock = std::chrono::steady_clock;
+	e.reset();
+	int frames = 0;
+	double sink = 0.0;
+	auto start = clock::now();
+	double elapsed = 0.0;
+	while (elapsed < 0.25) {
+		for (std::size_t end = length; end <= data.size(); end += hop, ++frames)
+			sink += e.frame(data, end);
+		elapsed = std::chrono::duration<double>(clock::now()-start).count();
+	}
+	if (sink == 42.0)
+		std::printf(" ");
+	return frames/elapsed;
+}
+
+static int failures = 0;
+
+static void check_max(double value, double limit, char const * what, int rate, char const * engine)
+{
+	if (value <= limit)
+		return;
+	++failures;
+	std::printf("FAIL %s %d Hz %s: %.2f (max %.2f)\n", engine, rate, what, value, limit);
+}
+
+static bool parse_option(char const * arg, char const * name, double & value)
+{
+	std::size_t n = std::strlen(name);
+	if (std::strncmp(arg, name, n) != 0 || arg[n] != '=')
+		return false;
+	value = std::atof(arg+n+1);
+	return true;
+}
+
+int main(int argc, char ** argv)
+{
+	// tolerance scale the accuracy and latency limits, min-fps replace the
+	// throughput limit, for slow or loaded machines.
+	double tolerance = 1.0;
+	double min_fps = -1.0;
+	for (int i = 1; i < argc; ++i) {
+		if (!parse_option(argv[i], "--tolerance", tolerance)
+				&& !parse_option(argv[i], "--min-fps", min_fps)) {
+			std::fprintf(stderr, "usage: %s [--tolerance=X] [--min-fps=X]\n", argv[0]);
+			return 2;
+		}
+	}
+
+	std::printf("%-8s %6s | %12s %12s %12s | %7s | %9s %9s | %9s\n", "engine", "rate",
+			"clean c", "vibrato c", "noise c", "miss", "latency", "max lat", "fps");
+	std::printf("%-8s %6s | %12s %12s %12s | %7s | %9s %9s | %9s\n", "", "",
+			"mean/max", "mean/max", "mean/max", "rate", "mean ms", "ms", "");
+
+	for (int rate : sample_rates) {
+		for (bool capture : {false, true}) {
+			engine e(capture ? "capture" : "compute", rate, capture);
+			thresholds const & limit = capture ? capture_limits : compute_limits;
+
+			accuracy clean, vibrato, noisy;
+			double latency = 0.0;
+			double max_latency = 0.0;
+			int note_count = 0;
+			for (double note : notes) {
+				signal_spec spec;
+				spec.frequency = note;
+				accuracy a = measure_accuracy(e, rate, spec);
+
+				spec.vibrato_cents = 25.0;
+				accuracy v = measure_accuracy(e, rate, spec);
+
+				spec.vibrato_cents = 0.0;
+				spec.snr_db = 20.0;
+				accuracy n = measure_accuracy(e, rate, spec);
+
+				clean.mean_cents += a.mean_cents;
+				clean.max_cents = std::max(clean.max_cents, a.max_cents);
+				clean.miss_rate = std::max(clean.miss_rate, std::max(a.miss_rate, v.miss_rate));
+				vibrato.mean_cents += v.mean_cents;
+				vibrato.max_cents = std::max(vibrato.max_cents, v.max_cents);
+				noisy.mean_cents += n.mean_cents;
+				noisy.max_cents = std::max(noisy.max_cents, n.max_cents);
+				noisy.miss_rate = std::max(noisy.miss_rate, n.miss_rate);
+
+				double l = measure_latency(e, rate, note);
+				latency += l;
+				max_latency = std::max(max_latency, l);
+				++note_count;
+			}
+			clean.mean_cents /= note_count;
+			vibrato.mean_cents /= note_count;
+			noisy.mean_cents /= note_count;
+			latency /= note_count;
+			double miss = std::max(clean.miss_rate, noisy.miss_rate);
+
+			double fps = measure_fps(e, rate);
+
+			std::printf("%-8s %6d | %5.2f/%6.2f %5.2f/%6.2f %5.2f/%6.2f | %6.1f%% | %9.1f %9.1f | %9.0f\n",
+					e.name, rate, clean.mean_cents, clean.max_cents, vibrato.mean_cents, vibrato.max_cents,
+					noisy.mean_cents, noisy.max_cents, 100.0*miss, latency, max_latency, fps);
+
+			check_max(clean.max_cents, tolerance*limit.max_cents, "cents error", rate, e.name);
+			check_max(vibrato.mean_cents, tolerance*limit.max_vibrato_cents, "mean cents error with vibrato", rate, e.name);
+			check_max(noisy.max_cents, tolerance*limit.max_noisy_cents, "cents error with noise", rate, e.name);
+			check_max(miss, tolerance*limit.max_miss_rate, "miss rate", rate, e.name);
+			check_max(max_latency, tolerance*limit.max_latency_ms, "latency ms", rate, e.name);
+			double fps_limit = min_fps >= 0.0 ? min_fps : limit.min_fps;
+			if (fps < fps_limit) {
+				++failures;
+				std::printf("FAIL %s %d Hz throughput: %.0f fps (min %.0f)\n", e.name, rate, fps, fps_limit);
+			}
+		}
+	}
+
+	if (failures) {
+		std::printf("%d regression(s)\n", failures);
+		return 1;
+	}
+	std::printf("all checks passed\n");
+	return 0;
+}
@@ -0,0 +1,135 @@
+/*
+
+Copyright (2020) Benoit Gschwind <gschwind@gnu-log.net>
+
+This file is part of fiddle-assistant.
+
+fiddle-assistant is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+fiddle-assistant is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with fiddle-assistant.  If not, see <https://www.gnu.org/licenses/>.
+
+ */
+
+#include <benchmark/benchmark.h>
+
+#include <cmath>
+#include <cstdint>
+#include <vector>
+
+#include "tone_handler.hxx"
+#include "pitch_engine.hxx"
+
+using handler_t = tone_handler<float>;
+
+// Same list as MicSampleSource.getValidSampleRates
+static void sample_rates(benchmark::internal::Benchmark * b)
+{
+	for (int rate : {48000, 44100, 22050, 16000, 11025, 8000})
+		b->Arg(rate);
+}
+
+// Same value as AnalysisConfig.DEFAULT.interpolationFactor
+static int const interpolation_factor = 2;
+
+// A4 with 6 harmonics, about the spectrum of a bowed string.
+static std::vector<std::int16_t> harmonic_tone(int rate, std::size_t len, double frequency = 440.0)
+{
+	std::vector<std::int16_t> data(len);
+	for (std::size_t i = 0; i < len; ++i) {
+		double x = 0.0;
+		for (int h = 1; h <= 6; ++h) {
+			if (h*frequency < rate/2)
+				x += 6000.0/h*std::sin(2.0*M_PI*frequency*h*i/rate);
+		}
+		data[i] = static_cast<std::int16_t>(x);
+	}
+	return data;
+}
+
+static void BM_compute_freq(benchmark::State & state)
+{
+	int rate = state.range(0);
+	handler_t handler;
+	handler.init_sample_rate(rate, interpolation_factor);
+	auto data = harmonic_tone(rate, handler.sample_length);
+
+	for (auto _ : state) {
+		benchmark::DoNotOptimize(handler.compute_freq(data.data(), data.size()));
+	}
+
+	state.counters["fft_n"] = handler.g_fft_n;
+	state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_compute_freq)->Apply(sample_rates);
+
+static void BM_find_frequency(benchmark::State & state)
+{
+	int rate = state.range(0);
+	handler_t handler;
+	handler.init_sample_rate(rate, interpolation_factor);
+	auto data = harmonic_tone(rate, handler.sample_length);
+	handler.compute_freq(data.data(), data.size());
+
+	float * bgn = handler.spectrum.data();
+	float * end = bgn+handler.g_fft_n/2;
+	for (auto _ : state) {
+		benchmark::DoNotOptimize(handler.find_frequency(bgn, end));
+	}
+
+	state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_find_frequency)->Apply(sample_rates);
+
+static void BM_absolute_volume(benchmark::State & state)
+{
+	int rate = state.range(0);
+	handler_t handler;
+	handler.init_sample_rate(rate, interpolation_factor);
+	auto data = harmonic_tone(rate, handler.sample_length);
+
+	for (auto _ : state) {
+		benchmark::DoNotOptimize(handler.absolute_volume(data.data(), data.size()));
+	}
+
+	state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_absolute_volume)->Apply(sample_rates);
+
+// Per frame cost of the capture path on a sustained note at 60 Hz, the
+// tiered engine run the spectral path on a fraction of the frames only.
+static void BM_capture_frame(benchmark::State & state)
+{
+	int rate = state.range(0);
+	handler_t handler;
+	handler.init_sample_rate(rate, interpolation_factor);
+	pitch_engine<float> engine{handler};
+	engine.init();
+
+	auto ring = harmonic_tone(rate, rate*2);
+	std::size_t hop = rate/60;
+	std::size_t end = handler.sample_length;
+	std::size_t last = 0;
+
+	handler_t::analysis_result result;
+	for (auto _ : state) {
+		handler.track_ring(ring.data(), ring.size(), last, end);
+		engine.analyze_ring(ring.data(), ring.size(), end, result);
+		benchmark::DoNotOptimize(result);
+		last = end;
+		end = (end+hop) % ring.size();
+	}
+
+	state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_capture_frame)->Apply(sample_rates);
+
+BENCHMARK_MAIN();